@@ -0,0 +1,106 @@
+package com.iconloop.score.bfs;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import score.ByteArrayObjectWriter;
+import score.Context;
+import score.ObjectReader;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading, writing and reading back a {@link CidInfo} stored with the allocations as a JSON string,
+ * as a list of peer IDs and as a list of interned handles.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CidInfoCodecBenchmark {
+    private static final String CODEC = "RLPn";
+    private static final String[] ALLOCATIONS = new String[]{
+            "12D3KooWQYhTNQdmr3ArTeUHRYzFg94BKyTkoWBDWez9kSCVe2Xo",
+            "12D3KooWRBy97UB99e3J6hiPesre1MZeuNQvfan4gBziswrRJsNK",
+            "12D3KooWCKWTb3Kfn2MM4MBbSfjcmtYBvvTmwh7Q9sJRiS7cuRP9",
+            "12D3KooWSnesxkpLKtmhCaw6HKY3afzMqgGc2NHjvB9ivGdQbNHT",
+            "12D3KooWHVGpRADbBSTFnAKqXeWSQfT6THaZWEgn7wxWAZbjo1JV"
+    };
+
+    private byte[] legacyBytes;
+    private byte[] listBytes;
+    private byte[] handleBytes;
+
+    @Setup
+    public void setup() {
+        CidInfo cidInfo = newCidInfo();
+        legacyBytes = encodeLegacy(cidInfo);
+        listBytes = encode(cidInfo);
+        CidInfo interned = newCidInfo();
+        interned.setAllocationHandles(new int[]{1, 2, 3, 4, 5});
+        handleBytes = encode(interned);
+    }
+
+    private static CidInfo newCidInfo() {
+        return new CidInfo.Builder()
+                .cid("zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA")
+                .size(BigInteger.valueOf(100))
+                .replicationMin(BigInteger.valueOf(3))
+                .replicationMax(BigInteger.valueOf(5))
+                .userAllocations(ALLOCATIONS)
+                .shardSize(BigInteger.valueOf(12345))
+                .refCnt(2)
+                .build();
+    }
+
+    private static byte[] encode(CidInfo cidInfo) {
+        ByteArrayObjectWriter w = Context.newByteArrayObjectWriter(CODEC);
+        CidInfo.writeObject(w, cidInfo);
+        return w.toByteArray();
+    }
+
+    // The layout used before the allocations were written as a list
+    private static byte[] encodeLegacy(CidInfo c) {
+        ByteArrayObjectWriter w = Context.newByteArrayObjectWriter(CODEC);
+        w.writeListOfNullable(
+                c.getCid(),
+                c.getSize(),
+                c.getReplication_min(),
+                c.getReplication_max(),
+                Helper.StringListToJsonString(c.getUser_allocations()),
+                c.getShard_size(),
+                c.getRefCnt()
+        );
+        return w.toByteArray();
+    }
+
+    private static CidInfo decode(byte[] bytes) {
+        ObjectReader r = Context.newByteArrayObjectReader(CODEC, bytes);
+        return CidInfo.readObject(r);
+    }
+
+    @Benchmark
+    public CidInfo json() {
+        return decode(encodeLegacy(decode(legacyBytes)));
+    }
+
+    @Benchmark
+    public CidInfo list() {
+        return decode(encode(decode(listBytes)));
+    }
+
+    @Benchmark
+    public CidInfo handles() {
+        return decode(encode(decode(handleBytes)));
+    }
+}
@@ -0,0 +1,46 @@
+package com.iconloop.score.bfs;
+
+import java.math.BigInteger;
+
+/**
+ * Allocation settings of the contract, read once per call through TxCache.
+ */
+public class AllocationSettings {
+    private final int allocationMin;
+    private final int allocationMax;
+    private final int allocationMargin;
+    private final String strategy;
+    private final BigInteger shardSize;
+
+    public AllocationSettings(int allocationMin,
+                              int allocationMax,
+                              int allocationMargin,
+                              String strategy,
+                              BigInteger shardSize) {
+        this.allocationMin = allocationMin;
+        this.allocationMax = allocationMax;
+        this.allocationMargin = allocationMargin;
+        this.strategy = strategy;
+        this.shardSize = shardSize;
+    }
+
+    public int getAllocationMin() {
+        return allocationMin;
+    }
+
+    public int getAllocationMax() {
+        return allocationMax;
+    }
+
+    public int getAllocationMargin() {
+        return allocationMargin;
+    }
+
+    public String getStrategy() {
+        return strategy;
+    }
+
+    public BigInteger getShardSize() {
+        return shardSize;
+    }
+}
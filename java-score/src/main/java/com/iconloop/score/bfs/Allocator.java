@@ -1,10 +1,18 @@
 package com.iconloop.score.bfs;
 
 public class Allocator {
+    public static final String STRATEGY_FRONT_BACK = "front_back";
+    public static final String STRATEGY_RENDEZVOUS = "rendezvous";
+    public static final String STRATEGY_CAPACITY = "capacity";
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     private int frontIndex;
     private int backIndex;
-    private final String[] peers;
+    private final PeerSource peers;
+    private final int numOfPeers;
     private final String[] userAllocations;
+    private final int[] userAllocationIds;
     private final int allocationMin;
     private final int allocationMax;
     private final int allocationMargin;
@@ -19,10 +27,42 @@ public class Allocator {
                      int allocationMax,
                      int allocationMargin,
                      BfsContents bfsContents) {
+        this(new PeerSource.ArrayPeers(peers), frontIndex, backIndex, userAllocations,
+                allocationMin, allocationMax, allocationMargin, bfsContents);
+    }
+
+    public Allocator(PeerSource peers,
+                     int frontIndex,
+                     int backIndex,
+                     String[] userAllocations,
+                     int allocationMin,
+                     int allocationMax,
+                     int allocationMargin,
+                     BfsContents bfsContents) {
+        this(peers, frontIndex, backIndex, userAllocations, indexesOf(peers, userAllocations),
+                allocationMin, allocationMax, allocationMargin, bfsContents);
+    }
+
+    /**
+     * The peers are told apart by int ids instead of their IDs: their positions in the peer list, or their handles
+     * for makeCapacityAllocations. userAllocationIds holds the id of each user allocation, or a negative one to
+     * leave it out.
+     */
+    public Allocator(PeerSource peers,
+                     int frontIndex,
+                     int backIndex,
+                     String[] userAllocations,
+                     int[] userAllocationIds,
+                     int allocationMin,
+                     int allocationMax,
+                     int allocationMargin,
+                     BfsContents bfsContents) {
         this.peers = peers;
+        this.numOfPeers = peers.size();
         this.frontIndex = frontIndex;
         this.backIndex = backIndex;
         this.userAllocations = userAllocations;
+        this.userAllocationIds = userAllocationIds;
         this.allocationMin = allocationMin;
         this.allocationMax = allocationMax;
         this.allocationMargin = allocationMargin;
@@ -36,9 +76,28 @@ public class Allocator {
         return this.bfsContents.checkPeerExist(peer_id);
     }
 
-    private boolean checkPeerUnique(String[] peers, String peer) {
-        for (String thePeer : peers) {
-            if (thePeer != null && thePeer.equals(peer)) {
+    // Looks the user allocations up in the list, which reads every peer. Only for the lists held in memory.
+    private static int[] indexesOf(PeerSource peers, String[] userAllocations) {
+        if (userAllocations == null) {
+            return null;
+        }
+
+        int[] ids = new int[userAllocations.length];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = -1;
+            for (int j = 0; j < peers.size(); j++) {
+                if (peers.get(j).equals(userAllocations[i])) {
+                    ids[i] = j;
+                    break;
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static boolean checkPeerUnique(int[] ids, int count, int id) {
+        for (int i = 0; i < count; i++) {
+            if (ids[i] == id) {
                 return false;
             }
         }
@@ -46,76 +105,93 @@ public class Allocator {
         return true;
     }
 
-    public String[] makeAllocations() {
+    private int getAllocationNum() {
         int allocationNum = this.allocationMin + this.allocationMargin;
         allocationNum = Math.min(allocationNum, this.allocationMax);
-        allocationNum = Math.min(allocationNum, this.peers.length);
+        return Math.min(allocationNum, this.numOfPeers);
+    }
 
-        String[] allocations = new String[allocationNum];
+    private int addUserAllocations(String[] allocations, int[] ids) {
         int allocationIndex = 0;
-        int allocationCount = 0;
+        if (this.userAllocations == null) {
+            return allocationIndex;
+        }
 
-        // Add userAllocations given by caller first
-        if (this.userAllocations != null && this.userAllocations.length > 0) {
-            for (String allocation : this.userAllocations) {
-                if (checkPeerExist(allocation) && checkPeerUnique(allocations, allocation)) {
-                    allocations[allocationIndex] = allocation;
-                    allocationIndex++;
-                    allocationCount++;
-                }
+        for (int i = 0; i < this.userAllocations.length; i++) {
+            if (allocationIndex >= allocations.length) {
+                break;
+            }
 
-                if (allocationIndex >= allocationNum) {
-                    break;
-                }
+            String allocation = this.userAllocations[i];
+            int id = this.userAllocationIds[i];
+            if (id >= 0 && checkPeerExist(allocation) && checkPeerUnique(ids, allocationIndex, id)) {
+                allocations[allocationIndex] = allocation;
+                ids[allocationIndex] = id;
+                allocationIndex++;
             }
+        }
+        return allocationIndex;
+    }
 
-            // If allocationCount exceeds allocationMin, it returns without further allocation.
-            if (allocationCount >= this.allocationMin) {
-                String[] allocationsSet = new String[allocationIndex];
-                System.arraycopy(allocations, 0, allocationsSet, 0, allocationsSet.length);
+    private static String[] trimAllocations(String[] allocations, int length) {
+        String[] allocationsSet = new String[length];
+        System.arraycopy(allocations, 0, allocationsSet, 0, allocationsSet.length);
+        return allocationsSet;
+    }
 
-                return allocationsSet;
-            }
+    public String[] makeAllocations() {
+        String[] allocations = new String[getAllocationNum()];
+        int[] ids = new int[allocations.length];
+
+        // Add userAllocations given by caller first
+        int allocationIndex = addUserAllocations(allocations, ids);
+        int allocationCount = allocationIndex;
+
+        // If allocationCount exceeds allocationMin, it returns without further allocation.
+        if (allocationCount > 0 && allocationCount >= this.allocationMin) {
+            return trimAllocations(allocations, allocationIndex);
         }
 
         boolean useFrontIndex = true;
-        if (this.backIndex >= this.peers.length) {
+        if (this.backIndex >= this.numOfPeers) {
             this.frontIndex = 0;
-            this.backIndex = this.peers.length - 1;
+            this.backIndex = this.numOfPeers - 1;
         }
 
-        while (allocationCount < this.peers.length) {
+        while (allocationCount < this.numOfPeers) {
             if (this.frontIndex > this.backIndex) {
                 this.frontIndex = 0;
-                this.backIndex = this.peers.length - 1;
+                this.backIndex = this.numOfPeers - 1;
                 useFrontIndex = true;
             }
 
             if (useFrontIndex) {
-                if (!checkPeerUnique(allocations, this.peers[this.frontIndex])) {
+                if (!checkPeerUnique(ids, allocationIndex, this.frontIndex)) {
                     this.frontIndex++;
                     useFrontIndex = false;
                     continue;
                 }
 
-                allocations[allocationIndex] = this.peers[this.frontIndex];
+                allocations[allocationIndex] = this.peers.get(this.frontIndex);
+                ids[allocationIndex] = this.frontIndex;
                 allocationIndex++;
                 this.frontIndex++;
                 useFrontIndex = false;
             } else {
-                if (!checkPeerUnique(allocations, this.peers[this.backIndex])) {
+                if (!checkPeerUnique(ids, allocationIndex, this.backIndex)) {
                     this.backIndex--;
                     useFrontIndex = true;
                     continue;
                 }
 
-                allocations[allocationIndex] = this.peers[backIndex];
+                allocations[allocationIndex] = this.peers.get(this.backIndex);
+                ids[allocationIndex] = this.backIndex;
                 allocationIndex++;
                 this.backIndex--;
                 useFrontIndex = true;
             }
 
-            if (allocationIndex >= allocationNum) {
+            if (allocationIndex >= allocations.length) {
                 break;
             }
 
@@ -126,10 +202,119 @@ public class Allocator {
             throw new AllocatorException("There are not enough allocation nodes.");
         }
 
-        String[] allocationsSet = new String[allocationIndex];
-        System.arraycopy(allocations, 0, allocationsSet, 0, allocationsSet.length);
+        return trimAllocations(allocations, allocationIndex);
+    }
 
-        return allocationsSet;
+    /**
+     * Picks the peers with the highest weight of hash(cid, peer) (Rendezvous hashing).
+     * It needs no shared cursor, and adding or removing a peer only moves the CIDs whose
+     * top ranked peers change, about 1/N of them. In exchange, every peer is read once.
+     */
+    public String[] makeRendezvousAllocations(String cid) {
+        String[] allocations = new String[getAllocationNum()];
+        int[] ids = new int[allocations.length];
+
+        int allocationIndex = addUserAllocations(allocations, ids);
+        if (allocationIndex > 0 && allocationIndex >= this.allocationMin) {
+            return trimAllocations(allocations, allocationIndex);
+        }
+
+        // Keep the highest weights in descending order
+        int needed = allocations.length - allocationIndex;
+        String[] ranked = new String[needed];
+        long[] weights = new long[needed];
+        int rankedCount = 0;
+        long cidHash = hash(FNV_OFFSET_BASIS, cid);
+        for (int i = 0; i < this.numOfPeers && needed > 0; i++) {
+            if (!checkPeerUnique(ids, allocationIndex, i)) {
+                continue;
+            }
+
+            String peer = this.peers.get(i);
+            long weight = weight(cidHash, peer);
+            int pos = rankedCount;
+            while (pos > 0 && isHeavier(weight, peer, weights[pos - 1], ranked[pos - 1])) {
+                pos--;
+            }
+            if (pos >= needed) {
+                continue;
+            }
+
+            int last = Math.min(rankedCount, needed - 1);
+            for (int j = last; j > pos; j--) {
+                ranked[j] = ranked[j - 1];
+                weights[j] = weights[j - 1];
+            }
+            ranked[pos] = peer;
+            weights[pos] = weight;
+            rankedCount = Math.min(rankedCount + 1, needed);
+        }
+
+        for (int i = 0; i < rankedCount; i++) {
+            allocations[allocationIndex++] = ranked[i];
+        }
+
+        if (allocationIndex < this.allocationMin) {
+            throw new AllocatorException("There are not enough allocation nodes.");
+        }
+
+        return trimAllocations(allocations, allocationIndex);
+    }
+
+    /**
+     * Picks the candidates in the given order after the user allocations.
+     * The candidates are expected to be the peers with the most free space, all of them with room for the content.
+     * candidateIds holds their ids, of the same kind as the ids of the user allocations.
+     */
+    public String[] makeCapacityAllocations(String[] candidates, int[] candidateIds) {
+        String[] allocations = new String[getAllocationNum()];
+        int[] ids = new int[allocations.length];
+
+        int allocationIndex = addUserAllocations(allocations, ids);
+        if (allocationIndex > 0 && allocationIndex >= this.allocationMin) {
+            return trimAllocations(allocations, allocationIndex);
+        }
+
+        for (int i = 0; i < candidates.length; i++) {
+            if (allocationIndex >= allocations.length) {
+                break;
+            }
+            if (checkPeerUnique(ids, allocationIndex, candidateIds[i])) {
+                allocations[allocationIndex] = candidates[i];
+                ids[allocationIndex] = candidateIds[i];
+                allocationIndex++;
+            }
+        }
+
+        if (allocationIndex < this.allocationMin) {
+            throw new AllocatorException("There are not enough allocation nodes with free space.");
+        }
+
+        return trimAllocations(allocations, allocationIndex);
+    }
+
+    private static long hash(long h, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return h;
+    }
+
+    static long weight(long cidHash, String peer) {
+        long h = hash(cidHash ^ '/', peer);
+        // Finalizer of SplitMix64 to spread FNV bits, then drop the sign bit.
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        h = h ^ (h >>> 31);
+        return h >>> 1;
+    }
+
+    private static boolean isHeavier(long weight, String peer, long otherWeight, String otherPeer) {
+        if (weight != otherWeight) {
+            return weight > otherWeight;
+        }
+        return peer.compareTo(otherPeer) < 0;
     }
 
     public int getFrontIndex() {
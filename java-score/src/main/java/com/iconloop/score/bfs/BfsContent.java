@@ -27,7 +27,8 @@ public interface BfsContent {
      *     "result": {
      *          "allocation_min": "0x2",
      *          "allocation_max": "0x5",
-     *          "allocation_margin": "0x2"
+     *          "allocation_margin": "0x2",
+     *          "allocation_strategy": "front_back"
      *     },
      *     "id": 1
      * }
@@ -36,8 +37,47 @@ public interface BfsContent {
      */
     Map<String, Object> get_default_allocation_factors();
 
+    /**
+     * Select how the peers of a new CID are chosen.
+     * <pre>
+     * front_back : Walk the peer list from both ends with shared cursors (default)
+     * rendezvous : Pick the peers with the highest hash(cid, peer) weight. No shared cursor is
+     *              updated and only about 1/N of the CIDs move when a peer is added or removed,
+     *              but every peer is read for each new CID.
+     * capacity   : Pick the peers with the most free space left. Only the peers which declared a
+     *              capacity with room for the content are chosen.
+     * </pre>
+     *
+     * @param strategy Allocation strategy ("front_back", "rendezvous" or "capacity")
+     */
+    void set_allocation_strategy(String strategy);
+
+    /**
+     * Set how many blocks a public key fetched from the DID score is reused for signature checks.
+     * A revoked key is still accepted until its cached entry expires, unless invalidate_public_key is called,
+     * so this is also the longest time a revocation may take to apply. 0 disables the cache. (default: 150)
+     *
+     * @param blocks Lifetime of a cached public key in blocks
+     */
+    void set_public_key_cache_ttl(BigInteger blocks);
+
+    BigInteger get_public_key_cache_ttl();
+
+    /**
+     * Drop the cached public key of did#kid, so that the next signature is checked against the DID score.
+     * Callable by the owner of the contract or by the DID score when a key is revoked.
+     *
+     * @param did DID of the key
+     * @param kid Key ID
+     */
+    void invalidate_public_key(String did, String kid);
+
     /**
      * Get pin information
+     * An unpinned pin has "expire_at" 0x1 and is kept for the grace window; once no one pins the content,
+     * its content fields (size, replication, allocations and shard size) are no longer given.
+     * The "expire_at" of a pin in a group is the one of the group. A pin made before collect_expired was introduced
+     * is still given after it expires, until the contract owner lists it in migrate_pin_index.
      * <pre>
      * Example JSON response:
      * {
@@ -66,8 +106,86 @@ public interface BfsContent {
      */
     Map<String,Object> get_pin(String owner, String cid);
 
+    /**
+     * Get multiple pins of an owner in one call.
+     * The result has the same order as cids, with null for the CIDs which are not pinned by the owner.
+     *
+     * @param owner Owner of the pinned content (DID / Wallet)
+     * @param cids The content identifiers of the pins (up to 500)
+     * @return Pin information of each CID, same as get_pin
+     */
+    List<Object> get_pins(String owner, String[] cids);
+
+    /**
+     * Get the pins of an owner page by page.
+     * Unpinning moves the last pin of the owner into the slot of the unpinned one,
+     * so pages should be read at the same block height to get a consistent listing.
+     * <pre>
+     * Example JSON response:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *          "total": "0x3",
+     *          "next": "0x2",
+     *          "pins": [{ ... same as get_pin ... }]
+     *     },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * @param owner Owner of the pinned content (DID / Wallet)
+     * @param cursor Index of the first pin in the page (0 for the first page, then "next" of the previous page)
+     * @param limit Maximum number of pins in the page (up to 100)
+     * @return Total number of pins, cursor of the next page and the pins of the page
+     */
+    Map<String, Object> get_pins_by_owner(String owner, BigInteger cursor, BigInteger limit);
+
+    /**
+     * Get the pins of a group page by page, in the same format as get_pins_by_owner.
+     * Pins made before the index of the pins of each group was introduced are not listed.
+     *
+     * @param owner Owner of the group (DID / Wallet)
+     * @param group Group name
+     * @param cursor Index of the first pin in the page (0 for the first page, then "next" of the previous page)
+     * @param limit Maximum number of pins in the page (up to 100)
+     * @return Total number of pins, cursor of the next page and the pins of the page
+     */
+    Map<String, Object> get_group_pins(String owner, String group, BigInteger cursor, BigInteger limit);
+
+    /**
+     * Get the number of pins of the owner and their size, counted when they are pinned and removed.
+     * Pins made before the usage was counted are not included.
+     * <pre>
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *          "pins": "0x2",
+     *          "bytes": "0xc8",
+     *          "quota": "0x3e8"
+     *     },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * @param owner Owner of the pinned content (DID / Wallet)
+     * @return Number of pins, their total size in bytes, and the quota if set
+     */
+    Map<String, Object> get_usage(String owner);
+
+    /**
+     * Sets the maximum total size of the pins of the owner, checked when pinning. Only the owner of the
+     * contract can call it. Pins already over the quota are kept.
+     *
+     * @param owner Owner of the pinned content (DID / Wallet)
+     * @param bytes (Optional) Quota in bytes, or null to remove it
+     */
+    void set_quota(String owner, BigInteger bytes);
+
     /**
      * Pins the specified CID to the local IPFS node.
+     * The payload of did_sign is {"method": "pin", "param": {"cid": cid, "size": hex, "expire_at": hex}}.
+     * If the owner pinned the CID before, the pin is unpinned or deleted, and the payload must also have a base_height
+     * not lower than the last_updated of that pin, so that the signature of an earlier pin cannot be replayed.
      *
      * @param cid The content identifier to be pinned.
      * @param size Data size
@@ -85,6 +203,29 @@ public interface BfsContent {
              @Optional String did_sign,
              @Optional String[] user_allocations);
 
+    /**
+     * Pins multiple CIDs of the same owner with a single DID signature.
+     * The payload of did_sign is {"method": "pin_batch", "param": {"cids": [...], "sizes": [...], "expire_ats": [...],
+     * "names": [...], "group": group}}, where sizes and expire_ats are hex strings in the same order as cids,
+     * and names and group are present only if they are given.
+     * As with pin, if the owner pinned any of the CIDs before, the payload must also have a base_height not lower
+     * than the latest last_updated of those pins.
+     * It reverts as a whole if any of the CIDs cannot be pinned.
+     *
+     * @param cids The content identifiers to be pinned.
+     * @param sizes Data sizes
+     * @param expire_ats Pin Expiration Times (Micro second)
+     * @param names (Optional) Aliases for the cids
+     * @param group (Optional) The group to which the CIDs belong
+     * @param did_sign (Optional) DID signature (JWT)
+     */
+    void pin_batch(String[] cids,
+                   BigInteger[] sizes,
+                   BigInteger[] expire_ats,
+                   @Optional String[] names,
+                   @Optional String group,
+                   @Optional String did_sign);
+
     /**
      * Unpins the specified CID, allowing it to be garbage collected.
      *
@@ -93,6 +234,17 @@ public interface BfsContent {
      */
     void unpin(String cid, @Optional String did_sign);
 
+    /**
+     * Unpins multiple CIDs of the same owner with a single DID signature.
+     * The payload of did_sign is {"method": "unpin_batch", "param": {"cids": [...], "base_height": height}},
+     * where base_height must not be lower than the last_updated of any of the pins.
+     * It reverts as a whole if any of the CIDs is not pinned or appears twice.
+     *
+     * @param cids The content identifiers to be unpinned.
+     * @param did_sign (Optional) DID signature (JWT)
+     */
+    void unpin_batch(String[] cids, @Optional String did_sign);
+
     /**
      * Updates the metadata of an existing pin.
      *
@@ -104,6 +256,64 @@ public interface BfsContent {
                     BigInteger expire_at,
                     @Optional String did_sign);
 
+    /**
+     * Updates the expiration time of multiple pins of the same owner with a single DID signature.
+     * The payload of did_sign is {"method": "update_pin_batch", "param": {"cids": [...], "expire_at": hex, "base_height": height}},
+     * where base_height must not be lower than the last_updated of any of the pins.
+     * It reverts as a whole if any of the CIDs is not pinned or is given more than once.
+     *
+     * @param cids The content identifiers of the pins.
+     * @param expire_at Pin Expiration Time (Micro second)
+     * @param did_sign (Optional) DID signature (JWT)
+     */
+    void update_pin_batch(String[] cids,
+                          BigInteger expire_at,
+                          @Optional String did_sign);
+
+    /**
+     * Removes expired pins and releases their references to the content. Anyone can call it.
+     * Pins are indexed by the hour of their expire_at, and groups by the hour of theirs, which the pins of a group
+     * expire with. The hours which have fully passed are processed in order, so repeated calls catch up with the backlog.
+     * Each removed pin emits a RemovePin event.
+     * Pins made before this index are not collected until the contract owner lists them in migrate_pin_index.
+     *
+     * @param max_items Maximum number of index entries to process (up to 500)
+     */
+    void collect_expired(BigInteger max_items);
+
+    /**
+     * Sets the number of blocks an unpinned pin is kept before purge_tombstones deletes it.
+     * With 0, unpinning deletes the pin right away. Only the owner can call it.
+     *
+     * @param blocks Grace window in blocks (default 43200)
+     */
+    void set_tombstone_grace(BigInteger blocks);
+
+    /**
+     * Get the number of blocks an unpinned pin is kept.
+     *
+     * @return Grace window in blocks
+     */
+    BigInteger get_tombstone_grace();
+
+    /**
+     * Deletes the unpinned pins older than the grace window, in the order they were unpinned. Anyone can call it.
+     * A pin pinned again in the meantime is kept.
+     *
+     * @param max_items Maximum number of unpinned pins to process (up to 500)
+     */
+    void purge_tombstones(BigInteger max_items);
+
+    /**
+     * Deletes records left by unpins made before the unpinned pins were queued for deletion. Anyone can call it.
+     * For each CID, the unpinned pin of the owner is deleted if it is older than the grace window,
+     * and the CID is deleted if no one pins it.
+     *
+     * @param owner Owner of the unpinned pins (DID / Wallet)
+     * @param cids The content identifiers of the pins (up to 500)
+     */
+    void purge_pins(String owner, String[] cids);
+
     /**
      * Update the group.
      *
@@ -113,6 +323,21 @@ public interface BfsContent {
      */
     void update_group(String group, BigInteger expire_at, @Optional String did_sign);
 
+    /**
+     * Unpins the pins of a group in steps, up to max_items per call. Repeated calls resume until the group is empty.
+     * The payload of did_sign is {"method": "unpin_group", "param": {"group": "group", "base_height": height}},
+     * where base_height must not be lower than the last_updated of the group nor the height at which unpin_group
+     * last emptied it: the same signature can be used for every step, but not once the group has been emptied.
+     * Emits one BFSBatchEvent per call with the unpinned CIDs.
+     *
+     * @param group Group name
+     * @param max_items Maximum number of pins to process (up to 500)
+     * @param did_sign (Optional) DID signature (JWT)
+     */
+    void unpin_group(String group,
+                     BigInteger max_items,
+                     @Optional String did_sign);
+
     /**
      * Get group information
      * <pre>
@@ -148,7 +373,8 @@ public interface BfsContent {
      *           "endpoint": "1.1.1.1",
      *           "name": "BFS Node",
      *           "created": 1000,
-     *           "owner": "hxb461234639262da5ea29cf13ee47dd09def47427"
+     *           "owner": "hxb461234639262da5ea29cf13ee47dd09def47427",
+     *           "capacity": "0x1d1a94a2000"
      *      },
      *     "id": 1
      * }
@@ -159,6 +385,81 @@ public interface BfsContent {
      */
     NodeInfo get_node(String peer_id);
 
+    /**
+     * Get the bytes of the pinned CIDs allocated to a node. capacity and free are given only if the node declared its capacity.
+     * <pre>
+     * Example JSON response:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *          "used": "0x12c",
+     *          "capacity": "0x3e8",
+     *          "free": "0x2bc"
+     *     },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * @param peer_id Unique value that identifies the BFS node (Manager + IPFS Cluster + IPFS Daemon)
+     * @return Usage of the node
+     */
+    Map<String, Object> get_node_usage(String peer_id);
+
+    /**
+     * Get the pinned contents allocated to a node page by page, so that a node can rebuild its pin set
+     * without replaying the events. Contents pinned before the index of each node was introduced are not listed
+     * until the contract owner lists them in migrate_peer_cids.
+     * Pinning and unpinning move the entries of the index, so pages should be read at the same block height.
+     * <pre>
+     * Example JSON response:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *          "total": "0x2",
+     *          "next": "0x2",
+     *          "pins": [
+     *              {
+     *                  "cid": "zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA",
+     *                  "size": "0x12c",
+     *                  "replication_min": "0x1",
+     *                  "replication_max": "0x3",
+     *                  "shard_size": "0x0"
+     *              },
+     *              { ... }
+     *          ]
+     *     },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * @param peer_id Unique value that identifies the BFS node (Manager + IPFS Cluster + IPFS Daemon)
+     * @param cursor Index of the first content in the page (0 for the first page, then "next" of the previous page)
+     * @param limit Maximum number of contents in the page (up to 100)
+     * @return Total number of contents, cursor of the next page and the contents of the page
+     */
+    Map<String, Object> get_node_pins(String peer_id, BigInteger cursor, BigInteger limit);
+
+    /**
+     * Get a digest of the contents listed by get_node_pins, so that a node can check its pin set with one call
+     * and list the contents only when it differs. The digest is the XOR of the SHA3-256 hashes of the CIDs,
+     * which does not depend on their order; it is all zero for an empty set.
+     * <pre>
+     * Example JSON response:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *          "count": "0x2",
+     *          "digest": "0x3b1e0e0a6c2f2d5a5e9d7c2c8b4b2a1f0e9d8c7b6a5f4e3d2c1b0a9f8e7d6c5b"
+     *     },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * @param peer_id Unique value that identifies the BFS node (Manager + IPFS Cluster + IPFS Daemon)
+     * @return Number of contents and their digest
+     */
+    Map<String, Object> get_node_digest(String peer_id);
+
     /**
      * Adds a new peer to the IPFS Cluster
      *
@@ -167,13 +468,15 @@ public interface BfsContent {
      * @param endpoint (Optional) Node connection information (Multiaddr)
      * @param name (Optional) Alias for node
      * @param owner (Optional) Owner of the node
+     * @param capacity (Optional) Storage capacity of the node in bytes
      */
     @Payable
     void add_node(String peer_id,
                   String url,
                   @Optional String endpoint,
                   @Optional String name,
-                  @Optional Address owner);
+                  @Optional Address owner,
+                  @Optional BigInteger capacity);
 
 
     /**
@@ -183,6 +486,63 @@ public interface BfsContent {
      */
     void remove_node(String peer_id);
 
+    /**
+     * Records that the node is alive at the current block. Only the owner of the node can call it.
+     * A node dropped by sweep_stale_nodes is allocated new content again from its next heartbeat.
+     *
+     * @param peer_id Peer ID of the node
+     */
+    void heartbeat(String peer_id);
+
+    /**
+     * Get the block height the node was last seen at: its last heartbeat, or the height it was added at
+     * if it has sent none. It is never before the height the liveness window was enabled at, so that
+     * every node has one window to send its first heartbeat. Returns null if the node does not exist.
+     *
+     * @param peer_id Peer ID of the node
+     * @return Block height the node was last seen at
+     */
+    BigInteger get_last_seen(String peer_id);
+
+    /**
+     * Sets the number of blocks after its last heartbeat before sweep_stale_nodes drops a node from the
+     * allocation. With 0, which is the default, no node is dropped. Only the owner can call it.
+     * Liveness is eventual: allocation reads no heartbeat, so every strategy keeps allocating to a node
+     * past its window until a sweep drops it.
+     *
+     * @param blocks Liveness window in blocks
+     */
+    void set_liveness_window(BigInteger blocks);
+
+    /**
+     * Drops the nodes not seen within the liveness window from the peers new content is allocated to,
+     * until their next heartbeat. They are still listed by all_node and get_nodes, after the live ones.
+     * Anyone can call it, and each call resumes where the previous one stopped. It does nothing while
+     * the liveness window is not set. Until a sweep reaches it, a stale node is still allocated.
+     *
+     * @param max_items Maximum number of peers to check (up to 500)
+     */
+    void sweep_stale_nodes(BigInteger max_items);
+
+    /**
+     * Get the number of blocks after the last heartbeat of a node for which it is still allocated.
+     *
+     * @return Liveness window in blocks, 0 if disabled
+     */
+    BigInteger get_liveness_window();
+
+    /**
+     * Moves the pinned contents of a removed peer to the other peers. Anyone can call it.
+     * Each content gets one replacement peer chosen by the allocation strategy, among the peers which do not hold it yet,
+     * and emits a Reallocation event. Repeated calls resume where the previous one stopped.
+     * Contents pinned before the index of the contents of each peer was introduced are not moved until the contract
+     * owner lists them in migrate_peer_cids.
+     *
+     * @param peer_id Unique value that identifies the BFS node (Manager + IPFS Cluster + IPFS Daemon)
+     * @param max_items Maximum number of contents to process (up to 500)
+     */
+    void reallocate(String peer_id, BigInteger max_items);
+
     /**
      * Update peers in IPFS Cluster
      *
@@ -191,13 +551,15 @@ public interface BfsContent {
      * @param endpoint (Optional) Node connection information (Multiaddr)
      * @param name (Optional) Alias for node
      * @param owner (Optional) Owner of the node
+     * @param capacity (Optional) Storage capacity of the node in bytes
      */
     @Payable
     void update_node(String peer_id,
                      @Optional String url,
                      @Optional String endpoint,
                      @Optional String name,
-                     @Optional Address owner);
+                     @Optional Address owner,
+                     @Optional BigInteger capacity);
 
     /**
      * Get all nodes.
@@ -221,6 +583,46 @@ public interface BfsContent {
      */
     List<Object> all_node();
 
+    /**
+     * Get a page of nodes in the order of the peer list.
+     * <pre>
+     * Example JSON response:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *           "total": "0x2",
+     *           "nodes": [{
+     *                "peer_id": "zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA",
+     *                "url": "https://bfs-node",
+     *                "endpoint": "1.1.1.1",
+     *                "name": "BFS Node",
+     *                "created": 1000,
+     *                "owner": "hxb461234639262da5ea29cf13ee47dd09def47427"
+     *           }]
+     *      },
+     *     "id": 1
+     * }
+     *
+     * Example JSON response with compact:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *           "total": "0x2",
+     *           "peer_id": ["zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA"],
+     *           "url": ["https://bfs-node"],
+     *           "endpoint": ["1.1.1.1"]
+     *      },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * @param offset Index of the first node in the page
+     * @param limit Maximum number of nodes in the page (up to 100)
+     * @param compact (Optional) Return parallel arrays of peer_id, url and endpoint instead of node objects
+     * @return Total number of nodes and the nodes of the page
+     */
+    Map<String, Object> get_nodes(BigInteger offset, BigInteger limit, @Optional boolean compact);
+
     /**
      * Checks if all allocation peers for the pin are in a healthy state
      * <pre>
@@ -243,6 +645,74 @@ public interface BfsContent {
      */
     Map<String, Object> check_allocations(String cid);
 
+    /**
+     * Checks the allocations of multiple contents in one call.
+     * The result has the same order as cids, with null for the unknown CIDs.
+     *
+     * @param cids Unique identifiers for contents in IPFS (up to 500)
+     * @return Allocation information of each CID, same as check_allocations
+     */
+    List<Object> check_allocations_batch(String[] cids);
+
+    /**
+     * Sets the number of blocks the change journal keeps its entries. 0 keeps them all. Only the owner can call it.
+     *
+     * @param blocks Retention in blocks (default 1296000)
+     */
+    void set_change_retention(BigInteger blocks);
+
+    /**
+     * Get the number of blocks the change journal keeps its entries.
+     *
+     * @return Retention in blocks
+     */
+    BigInteger get_change_retention();
+
+    /**
+     * Removes the entries of the change journal older than the retention. Anyone can call it.
+     * Each change also removes up to 2 of them, so it is only needed to catch up after the retention is lowered.
+     *
+     * @param max_items Maximum number of entries to remove (up to 500)
+     */
+    void compact_changes(BigInteger max_items);
+
+    /**
+     * Get the changes made after a height page by page, to update a copy of the state without reading it all again.
+     * Each change gives its kind (the event type), the key of the changed item and the height:
+     * "owner/cid" for pins, "owner/group" for groups, peer_id for nodes and cid for Reallocation.
+     * When "truncated" is true, some changes have been removed by the retention and the copy must be read again.
+     * <pre>
+     * Example JSON response:
+     * {
+     *     "jsonrpc": "2.0",
+     *     "result": {
+     *          "next": "0x2a",
+     *          "end": "0x30",
+     *          "truncated": "0x0",
+     *          "changes": [
+     *              {
+     *                  "kind": "AddPin",
+     *                  "key": "hx5b356b0c3231baa7f2b8f6833267ae1ff178f0b4/zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA",
+     *                  "height": "0x3e8"
+     *              },
+     *              { ... }
+     *          ]
+     *     },
+     *     "id": 1
+     * }
+     * </pre>
+     *
+     * The first page is found by the height, with a binary search over the retained changes, and the next ones by the
+     * cursor: exactly one of them must be given.
+     *
+     * @param height (Optional) Height of the copy, for the first page; the changes made after it are returned
+     * @param cursor (Optional) "next" of the previous page, or the number of a change to read from
+     * @param limit Maximum number of changes in the page (up to 100)
+     * @return Cursor of the next page, number of the next change to be made, truncation flag and the changes of the page
+     */
+    Map<String, Object> get_changes_since(@Optional BigInteger height, @Optional BigInteger cursor, BigInteger limit);
+
+
     /**
      * Get peer information
      * {
@@ -250,11 +720,18 @@ public interface BfsContent {
      *     "result": {
      *           "frontIndexOfPeers": 0,
      *           "backIndexOfPeers": 0,
-     *           "NumOfPeers": 0
+     *           "NumOfPeers": 0,
+     *           "NumOfStalePeers": 0,
+     *           "total_pins": "0x2",
+     *           "total_bytes": "0xc8",
+     *           "cids": "0x1",
+     *           "stored_bytes": "0x12c"
      *      },
      *     "id": 1
      * }
      * </pre>
+     * total_pins and total_bytes count the pins of every owner, cids the distinct CIDs, and stored_bytes
+     * the bytes of the CIDs times their replicas.
      * @return Get peer information
      */
     Map<String, Object> get_info();
@@ -1,7 +1,10 @@
 package com.iconloop.score.bfs;
 
+import score.Address;
 import score.annotation.EventLog;
 
+import java.math.BigInteger;
+
 public interface BfsContentEvent {
     /**
      *
@@ -11,11 +14,13 @@ public interface BfsContentEvent {
      * @param value1
      * @param value2
      *
-     * BFSEvent handles multiple BFS events within a single EventLog
+     * BFSEvent handles multiple BFS events within a single EventLog.
+     * It is kept for existing consumers; the typed events below carry the indexed keys and the details.
      *  Add Pin -> event: "AddPin", value1: "cid", value2:"owner"
      *  UnPin -> event: "UnPin", value1: "cid", value2:"owner"
      *  Update Pin -> event: "UpdatePin", value1: "cid", value2:"owner"
      *  Remove Pin -> event : "RemovePin", value1: "cid", value2:"owner"
+     *  Reallocation -> event : "Reallocation", value1: "cid", value2: "peer_id" (the new peer, "" if there is none)
      *  Update Group -> event : "UpdateGroup", value1: "group", value2: "owner"
      *  Add Node -> event : "AddNode", value1: "peer_id", value2: "endpoint"
      *  Remove Node -> event : "RemoveNode", value1: "peer_id", value2: "endpoint"
@@ -23,4 +28,124 @@ public interface BfsContentEvent {
      */
     @EventLog(indexed=1)
     void BFSEvent(String event, String value1, String value2);
+
+    /**
+     *
+     * Notifies that a batch of BFS events has been executed for one owner.
+     * A batch emits this event once instead of one BFSEvent per item.
+     *
+     * @param event BFS Event
+     * @param owner Owner of the items
+     * @param values JSON array of the items
+     *
+     *  Add Pin -> event: "AddPin", owner: "owner", values: "[\"cid1\",\"cid2\"]"
+     *  UnPin -> event: "UnPin", owner: "owner", values: "[\"cid1\",\"cid2\"]"
+     *  Update Pin -> event: "UpdatePin", owner: "owner", values: "[\"cid1\",\"cid2\"]"
+     */
+    @EventLog(indexed=2)
+    void BFSBatchEvent(String event, String owner, String values);
+
+    /**
+     * Notifies that a content has been pinned. Batches emit it once per content.
+     *
+     * @param cid Content identifier
+     * @param owner Owner of the pin (DID / Wallet)
+     * @param size Size of the content, 0 if not given
+     * @param expire_at Pin Expiration Time (Micro second)
+     * @param group Group of the pin, "" if none
+     * @param allocations JSON array of the peers of the content
+     */
+    @EventLog(indexed=2)
+    void PinAdded(String cid, String owner, BigInteger size, BigInteger expire_at, String group, String allocations);
+
+    /**
+     * Notifies that the expiration time of a pin has been updated.
+     *
+     * @param cid Content identifier
+     * @param owner Owner of the pin (DID / Wallet)
+     * @param expire_at New Pin Expiration Time (Micro second)
+     */
+    @EventLog(indexed=2)
+    void PinUpdated(String cid, String owner, BigInteger expire_at);
+
+    /**
+     * Notifies that a pin has been removed, by unpinning it or by collect_expired.
+     *
+     * @param cid Content identifier
+     * @param owner Owner of the pin (DID / Wallet)
+     * @param expired true if the pin was removed by collect_expired
+     */
+    @EventLog(indexed=2)
+    void PinRemoved(String cid, String owner, boolean expired);
+
+    /**
+     * Notifies that a content has been deleted because no one pins it anymore.
+     * Its peers can drop it.
+     *
+     * @param cid Content identifier
+     * @param allocations JSON array of the peers of the content
+     */
+    @EventLog(indexed=1)
+    void CidRemoved(String cid, String allocations);
+
+    /**
+     * Notifies that a peer has to store a content: it is pinned for the first time since it was released,
+     * or it has been reallocated to the peer.
+     *
+     * @param peer_id Unique value that identifies the BFS node
+     * @param cid Content identifier
+     * @param size Size of the content, 0 if not given
+     */
+    @EventLog(indexed=2)
+    void PeerAssigned(String peer_id, String cid, BigInteger size);
+
+    /**
+     * Notifies that a peer no longer has to store a content: its last pin is removed,
+     * or it has been reallocated to another peer.
+     *
+     * @param peer_id Unique value that identifies the BFS node
+     * @param cid Content identifier
+     */
+    @EventLog(indexed=2)
+    void PeerReleased(String peer_id, String cid);
+
+    /**
+     * Notifies that a node has been added.
+     *
+     * @param peer_id Unique value that identifies the BFS node
+     * @param owner Owner of the node
+     * @param url API URL
+     * @param endpoint Node connection information (Multiaddr), "" if none
+     */
+    @EventLog(indexed=1)
+    void NodeAdded(String peer_id, Address owner, String url, String endpoint);
+
+    /**
+     * Notifies that a node has been updated, with its values after the update.
+     *
+     * @param peer_id Unique value that identifies the BFS node
+     * @param owner Owner of the node
+     * @param url API URL
+     * @param endpoint Node connection information (Multiaddr), "" if none
+     */
+    @EventLog(indexed=1)
+    void NodeUpdated(String peer_id, Address owner, String url, String endpoint);
+
+    /**
+     * Notifies that a node has been removed.
+     *
+     * @param peer_id Unique value that identifies the BFS node
+     */
+    @EventLog(indexed=1)
+    void NodeRemoved(String peer_id);
+
+    /**
+     * Notifies that a group has been created or updated.
+     *
+     * @param group Group name
+     * @param owner Owner of the group (DID / Wallet)
+     * @param expire_at Group Expiration Time (Micro second)
+     */
+    @EventLog(indexed=2)
+    void GroupUpdated(String group, String owner, BigInteger expire_at);
 }
\ No newline at end of file
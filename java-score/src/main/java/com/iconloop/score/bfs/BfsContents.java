@@ -11,6 +11,7 @@ import score.annotation.EventLog;
 import score.annotation.External;
 import score.annotation.Optional;
 import score.annotation.Payable;
+import scorex.util.ArrayList;
 import scorex.util.HashMap;
 
 import java.math.BigInteger;
@@ -22,6 +23,7 @@ enum EventType {
     UnPin,
     UpdatePin,
     RemovePin,
+    RemoveCid,
     Reallocation,
     AddNode,
     RemoveNode,
@@ -31,20 +33,81 @@ enum EventType {
 
 public class BfsContents implements BfsContent, BfsContentEvent{
     private final BigInteger UNPIN_STATE = BigInteger.valueOf(1);
+    private static final int MAX_BATCH_SIZE = 500;
+    private static final int MAX_PAGE_SIZE = 100;
+    private static final String STALE_PEERS = "peers";
+    // 43200 blocks, about one day with 2 second blocks
+    private static final long DEFAULT_TOMBSTONE_GRACE = 43200;
+    // One hour in microseconds
+    private static final BigInteger EXPIRY_BUCKET_SIZE = BigInteger.valueOf(3_600_000_000L);
     // TODO Need a better way to set the allocation number between min max.
     private final ArrayDB<String> peers = Context.newArrayDB("peers", String.class);
+    // Position of each peer in `peers`, kept in sync by every mutation of `peers`.
+    private final DictDB<String, Integer> peerIndexes = Context.newDictDB("peerIndexes", Integer.class);
+    private final VarDB<Integer> indexedPeers = Context.newVarDB("indexedPeers", Integer.class);
+    private final VarDB<Integer> peerIndexCursor = Context.newVarDB("peerIndexCursor", Integer.class);
+    // Compact handle of each peer ever added, used in place of the peer ID by the allocations of the CIDs.
+    private final DictDB<String, Integer> peerHandles = Context.newDictDB("peerHandles", Integer.class);
+    private final DictDB<Integer, String> handlePeers = Context.newDictDB("handlePeers", String.class);
+    // Height of the last heartbeat of each peer, apart from NodeInfo so that a heartbeat writes a single value.
+    private final DictDB<String, Long> lastSeen = Context.newDictDB("lastSeen", Long.class);
+    private final VarDB<Long> livenessWindow = Context.newVarDB("livenessWindow", Long.class);
+    // Height the liveness window was enabled at, from which every node has one window to send a heartbeat.
+    private final VarDB<Long> livenessSince = Context.newVarDB("livenessSince", Long.class);
+    // Nodes dropped from peers by sweep_stale_nodes until their next heartbeat, under the STALE_PEERS key,
+    // so that allocation only walks the live ones. The position in peers the next sweep starts at.
+    private final EnumerableSetDB staleNodes = new EnumerableSetDB("staleNodes");
+    private final VarDB<Integer> sweepCursor = Context.newVarDB("sweepCursor", Integer.class);
+    private final VarDB<Integer> lastPeerHandle = Context.newVarDB("lastPeerHandle", Integer.class);
+    // Bytes of the pinned CIDs allocated to each peer handle, and the free space of the peers which declared a capacity.
+    private final DictDB<Integer, BigInteger> usedBytes = Context.newDictDB("usedBytes", BigInteger.class);
+    private final CapacityHeap capacityHeap = new CapacityHeap("capacityHeap");
+    // Pinned CIDs allocated to each peer, keyed by the handle of the peer.
+    private final EnumerableSetDB peerCids = new EnumerableSetDB("peerCids");
+    // XOR of the SHA3-256 hashes of the CIDs in peerCids, keyed by the handle of the peer.
+    private final DictDB<Integer, byte[]> peerDigests = Context.newDictDB("peerDigests", byte[].class);
     private final VarDB<Integer> frontIndexOfPeers = Context.newVarDB("frontIndexOfPeers", Integer.class);
     private final VarDB<Integer> backIndexOfPeers = Context.newVarDB("backIndexOfPeers", Integer.class);
     // TODO allocationMin, allocationMax are need method to set them.
     private final VarDB<Integer> allocationMin = Context.newVarDB("allocationMin", Integer.class);
     private final VarDB<Integer> allocationMax = Context.newVarDB("allocationMax", Integer.class);
     private final VarDB<Integer> allocationMargin = Context.newVarDB("allocationMargin", Integer.class);
+    private final VarDB<String> allocationStrategy = Context.newVarDB("allocationStrategy", String.class);
     private final VarDB<BigInteger> shardSize = Context.newVarDB("shardSize", BigInteger.class);
     private final BranchDB<String, DictDB<String, PinInfo>> pinInfos = Context.newBranchDB("pinInfos", PinInfo.class);
+    // CIDs pinned by each owner
+    private final EnumerableSetDB ownerPins = new EnumerableSetDB("ownerPins");
+    // CIDs pinned in each group, keyed by "owner/group".
+    private final EnumerableSetDB groupPins = new EnumerableSetDB("groupPins");
+    // Height at which unpin_group last emptied each group, keyed by "owner/group".
+    private final DictDB<String, Long> groupUnpinned = Context.newDictDB("groupUnpinned", Long.class);
+    // Pins by the window of their own expire_at, groups by the window of theirs, and the first window not collected yet.
+    // The pins of a group expire with the group, so they are collected through its entry.
+    private final EnumerableSetDB expiryBuckets = new EnumerableSetDB("expiryBuckets");
+    private final EnumerableSetDB groupExpiryBuckets = new EnumerableSetDB("groupExpiryBuckets");
+    // Window each group is indexed under, keyed by "owner/group".
+    private final DictDB<String, BigInteger> groupBuckets = Context.newDictDB("groupBuckets", BigInteger.class);
+    private final VarDB<BigInteger> expiryCursor = Context.newVarDB("expiryCursor", BigInteger.class);
     private final DictDB<String, CidInfo> cidInfos = Context.newDictDB("cidInfos", CidInfo.class);
     private final DictDB<String, NodeInfo> nodeInfos = Context.newDictDB("nodeInfos", NodeInfo.class);
     private final BranchDB<String, DictDB<String, GroupInfo>> groupInfos = Context.newBranchDB("groupInfos", GroupInfo.class);
     private final VarDB<Address> didScore = Context.newVarDB("didScore", Address.class);
+    private final PublicKeyCache publicKeyCache = new PublicKeyCache("publicKeyCache");
+    private final ChangeJournal changes = new ChangeJournal("changes");
+    // Unpinned pins in the order they were unpinned, deleted once they are older than the grace window.
+    private final DictDB<Long, Tombstone> tombstones = Context.newDictDB("tombstones", Tombstone.class);
+    private final VarDB<Long> tombstoneHead = Context.newVarDB("tombstoneHead", Long.class);
+    private final VarDB<Long> tombstoneTail = Context.newVarDB("tombstoneTail", Long.class);
+    private final VarDB<Long> tombstoneGrace = Context.newVarDB("tombstoneGrace", Long.class);
+    // Last update of each deleted pin, keyed by "owner/cid", which a signed pin of the same CID must be based on.
+    private final DictDB<String, Long> deletedPins = Context.newDictDB("deletedPins", Long.class);
+    // Pins and their logical bytes of each owner and of all of them, and the optional quota of each owner in bytes.
+    private final DictDB<String, UsageInfo> ownerUsage = Context.newDictDB("ownerUsage", UsageInfo.class);
+    private final VarDB<UsageInfo> totalUsage = Context.newVarDB("totalUsage", UsageInfo.class);
+    private final DictDB<String, BigInteger> ownerQuotas = Context.newDictDB("ownerQuotas", BigInteger.class);
+    // Distinct CIDs, and their bytes stored by the peers, i.e. counted once per replica.
+    private final VarDB<BigInteger> cidCount = Context.newVarDB("cidCount", BigInteger.class);
+    private final VarDB<BigInteger> storedBytes = Context.newVarDB("storedBytes", BigInteger.class);
 
     public BfsContents(@Optional Address did_score) {
         if (did_score != null) {
@@ -52,6 +115,13 @@ public class BfsContents implements BfsContent, BfsContentEvent{
         }
     }
 
+    // Every external works on its own cache, see TxCache.
+    protected TxCache newTxCache() {
+        return new TxCache(this.pinInfos, this.cidInfos, this.nodeInfos, this.groupInfos,
+                this.ownerUsage, this.totalUsage, this.ownerQuotas, this.cidCount, this.storedBytes,
+                this.peerHandles, this.handlePeers, this.usedBytes);
+    }
+
     @External
     public void set_did_score(Address did_score) {
         Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
@@ -63,6 +133,79 @@ public class BfsContents implements BfsContent, BfsContentEvent{
         return this.didScore.get();
     }
 
+    @Override
+    @External
+    public void set_public_key_cache_ttl(BigInteger blocks) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        Context.require(blocks.signum() >= 0, "TTL must not be negative.");
+        this.publicKeyCache.setTtl(blocks.longValue());
+    }
+
+    @Override
+    @External(readonly=true)
+    public BigInteger get_public_key_cache_ttl() {
+        return BigInteger.valueOf(this.publicKeyCache.getTtl());
+    }
+
+    @Override
+    @External
+    public void invalidate_public_key(String did, String kid) {
+        Address caller = Context.getCaller();
+        Context.require(caller.equals(Context.getOwner()) || caller.equals(get_did_score()),
+                "Only owner or DID score can call this method.");
+        this.publicKeyCache.invalidate(did, kid);
+    }
+
+    @Override
+    @External
+    public void set_change_retention(BigInteger blocks) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        Context.require(blocks.signum() >= 0, "Retention must not be negative.");
+        this.changes.setRetention(blocks.longValue());
+    }
+
+    @Override
+    @External(readonly=true)
+    public BigInteger get_change_retention() {
+        return BigInteger.valueOf(this.changes.getRetention());
+    }
+
+    @Override
+    @External
+    public void compact_changes(BigInteger max_items) {
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+        this.changes.compact(max_items.min(BigInteger.valueOf(MAX_BATCH_SIZE)).intValue());
+    }
+
+    @Override
+    @External(readonly=true)
+    public Map<String, Object> get_changes_since(@Optional BigInteger height,
+                                                 @Optional BigInteger cursor,
+                                                 BigInteger limit) {
+        Context.require((height == null) != (cursor == null), "Either height or cursor must be given.");
+        Context.require(cursor == null || cursor.signum() >= 0, "cursor must not be negative.");
+        Context.require(limit.signum() > 0, "limit must be greater than 0.");
+
+        long head = this.changes.getHead();
+        long tail = this.changes.getTail();
+        // Changes after the height, or from the cursor on may have been removed already.
+        boolean truncated = (cursor != null) ? cursor.longValue() < head
+                : height.longValue() < this.changes.getCompactedHeight();
+        long start = (cursor != null) ? Math.max(cursor.longValue(), head) : this.changes.findAfter(height.longValue());
+        long end = Math.min(tail, start + limit.min(BigInteger.valueOf(MAX_PAGE_SIZE)).longValue());
+
+        List<Object> entries = new ArrayList<>();
+        for (long seq = start; seq < end; seq++) {
+            entries.add(this.changes.get(seq).toMap());
+        }
+        return Map.ofEntries(
+                Map.entry("next", end),
+                Map.entry("end", tail),
+                Map.entry("truncated", truncated),
+                Map.entry("changes", entries)
+        );
+    }
+
     @External
     public void set_shard_size(BigInteger shard_size) {
         Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
@@ -75,39 +218,101 @@ public class BfsContents implements BfsContent, BfsContentEvent{
         return this.shardSize.get();
     }
 
-    public String[] makeAllocations(Integer allocationMin, Integer allocationMax, String[] userAllocations) {
-        if (allocationMin > this.peers.size()) {
+    // Every CID of a call is allocated with the settings read once for the call.
+    private AllocationSettings getAllocationSettings(TxCache cache) {
+        AllocationSettings settings = cache.getAllocationSettings();
+        if (settings == null) {
+            settings = readAllocationSettings();
+            cache.setAllocationSettings(settings);
+        }
+        return settings;
+    }
+
+    protected AllocationSettings readAllocationSettings() {
+        return new AllocationSettings(this.allocationMin.getOrDefault(1),
+                                      this.allocationMax.getOrDefault(1),
+                                      this.allocationMargin.getOrDefault(2),
+                                      this.allocationStrategy.getOrDefault(Allocator.STRATEGY_FRONT_BACK),
+                                      this.shardSize.get());
+    }
+
+    public String[] makeAllocations(TxCache cache,
+                                    AllocationSettings settings,
+                                    String cid,
+                                    BigInteger size,
+                                    String[] userAllocations) {
+        PeerSource peers = new PeerSource.StoragePeers(cache, this.peers);
+        int allocationMin = settings.getAllocationMin();
+        int allocationMax = settings.getAllocationMax();
+        if (allocationMin > peers.size()) {
             Context.revert(100, "Fewer peers to allocate.");
         }
-        if (allocationMin < this.allocationMin.getOrDefault(1) || allocationMin > allocationMax) {
+        if (allocationMin > allocationMax) {
             Context.revert(100, "AllocationMin Range Error!");
         }
-        if (allocationMax < this.allocationMax.getOrDefault(1)) {
-            Context.revert(100, "AllocationMax Range Error!");
+
+        String[] allocations = null;
+        try {
+            allocations = allocate(cache, settings.getStrategy(), peers, cid, size, allocationMin, allocationMax,
+                    settings.getAllocationMargin(), userAllocations);
+        }
+        catch(Allocator.AllocatorException e) {
+            Context.revert(102, e.getMessage());
         }
+        return allocations;
+    }
 
-        int frontIndex = frontIndexOfPeers.getOrDefault(0);
-        int backIndex = backIndexOfPeers.getOrDefault(this.peers.size() - 1);
-        int allocationMargin = this.allocationMargin.getOrDefault(2);
+    // Runs the allocation strategy, and saves the shared cursors if it used them.
+    private String[] allocate(TxCache cache,
+                              String strategy,
+                              PeerSource peers,
+                              String cid,
+                              BigInteger size,
+                              int allocationMin,
+                              int allocationMax,
+                              int allocationMargin,
+                              String[] userAllocations) {
+        // Only the front_back strategy uses the shared cursors, the others do not read nor write them.
+        boolean useCursors = Allocator.STRATEGY_FRONT_BACK.equals(strategy);
+        int frontIndex = useCursors ? cache.getOrDefault(frontIndexOfPeers, 0) : 0;
+        int backIndex = useCursors ? cache.getOrDefault(backIndexOfPeers, peers.size() - 1) : 0;
+
+        // The capacity strategy tells the peers apart by their handles, the others by their positions in the list.
+        int[] userAllocationIds;
+        int[] candidateHandles = null;
+        if (Allocator.STRATEGY_CAPACITY.equals(strategy)) {
+            BigInteger needed = (size == null) ? BigInteger.ZERO : size;
+            userAllocationIds = handlesWithSpace(cache, userAllocations, needed);
+            int count = Math.min(allocationMin + allocationMargin, allocationMax)
+                    + ((userAllocations == null) ? 0 : userAllocations.length);
+            candidateHandles = topLivePeers(cache, count, needed);
+        } else {
+            userAllocationIds = indexesOfPeers(cache, userAllocations);
+        }
 
-        Allocator allocator = new Allocator(Helper.ArrayDBToArray(this.peers),
+        // The user allocations are checked above, so that the Allocator reads nothing through the contract.
+        Allocator allocator = new Allocator(peers,
                                             frontIndex,
                                             backIndex,
                                             userAllocations,
+                                            userAllocationIds,
                                             allocationMin,
                                             allocationMax,
-                                            allocationMargin, this);
-
-        String[] allocations = null;
-        try {
+                                            allocationMargin, null);
+
+        String[] allocations;
+        if (Allocator.STRATEGY_RENDEZVOUS.equals(strategy)) {
+            allocations = allocator.makeRendezvousAllocations(cid);
+        } else if (candidateHandles != null) {
+            allocations = allocator.makeCapacityAllocations(resolveHandles(cache, candidateHandles), candidateHandles);
+        } else {
             allocations = allocator.makeAllocations();
         }
-        catch(Allocator.AllocatorException e) {
-            Context.revert(102, e.getMessage());
-        }
 
-        frontIndexOfPeers.set(allocator.getFrontIndex());
-        backIndexOfPeers.set(allocator.getBackIndex());
+        if (useCursors) {
+            frontIndexOfPeers.set(allocator.getFrontIndex());
+            backIndexOfPeers.set(allocator.getBackIndex());
+        }
 
         return allocations;
     }
@@ -115,21 +320,81 @@ public class BfsContents implements BfsContent, BfsContentEvent{
     @Override
     @External(readonly=true)
     public Map<String,Object> get_pin(String owner, String cid) {
-        PinInfo pinInfo = this.pinInfos.at(owner).get(cid);
-        CidInfo cidInfo = this.cidInfos.get(cid);
+        return getPin(newTxCache(), owner, cid);
+    }
+
+    @Override
+    @External(readonly=true)
+    public List<Object> get_pins(String owner, String[] cids) {
+        requireBatchSize(cids);
+        // Pins sharing a group read it once.
+        TxCache cache = newTxCache();
+        List<Object> pins = new ArrayList<>();
+        for (String cid : cids) {
+            pins.add(getPin(cache, owner, cid));
+        }
+        return pins;
+    }
 
-        if(pinInfo == null || cidInfo == null){
+    private Map<String,Object> getPin(TxCache cache, String owner, String cid) {
+        PinInfo pinInfo = cache.getPin(owner, cid);
+        CidInfo cidInfo = cache.getCid(cid);
+
+        if(pinInfo == null){
             return null;
         }
 
         Map<String, Object> retVal = new HashMap<>();
         retVal.putAll(pinInfo.toMap());
-        retVal.putAll(cidInfo.toMap());
-        GroupInfo groupInfo = get_group(owner, pinInfo.getGroup());
+        // The CID of an unpinned pin is deleted once no one pins it.
+        if (cidInfo != null) {
+            retVal.putAll(cidInfo.toMap(resolveAllocations(cache, cidInfo)));
+        }
+        GroupInfo groupInfo = cache.getGroup(owner, pinInfo.getGroup());
         retVal.put("expire_at", (groupInfo != null) ? groupInfo.getExpire_at() : pinInfo.getExpire_at());
         return retVal;
     }
 
+    @Override
+    @External(readonly=true)
+    public Map<String, Object> get_pins_by_owner(String owner, BigInteger cursor, BigInteger limit) {
+        // The pins of a page share their groups, which are read once.
+        TxCache cache = newTxCache();
+        int total = this.ownerPins.size(cache, owner);
+        int start = getPageStart(cursor, total);
+        int end = getPageEnd(start, limit, total);
+
+        Object[] pins = new Object[end - start];
+        for (int i = start; i < end; i++) {
+            pins[i - start] = getPin(cache, owner, this.ownerPins.get(cache, owner, i));
+        }
+        return Map.ofEntries(
+                Map.entry("total", total),
+                Map.entry("next", end),
+                Map.entry("pins", List.of(pins))
+        );
+    }
+
+    @Override
+    @External(readonly=true)
+    public Map<String, Object> get_group_pins(String owner, String group, BigInteger cursor, BigInteger limit) {
+        String key = Helper.PinKey(owner, group);
+        TxCache cache = newTxCache();
+        int total = this.groupPins.size(cache, key);
+        int start = getPageStart(cursor, total);
+        int end = getPageEnd(start, limit, total);
+
+        Object[] pins = new Object[end - start];
+        for (int i = start; i < end; i++) {
+            pins[i - start] = getPin(cache, owner, this.groupPins.get(cache, key, i));
+        }
+        return Map.ofEntries(
+                Map.entry("total", total),
+                Map.entry("next", end),
+                Map.entry("pins", List.of(pins))
+        );
+    }
+
     @Override
     @External()
     public void set_default_allocation_factors(@Optional BigInteger allocation_min, @Optional BigInteger allocation_max, @Optional BigInteger allocation_margin) {
@@ -175,10 +440,24 @@ public class BfsContents implements BfsContent, BfsContentEvent{
         return Map.ofEntries(
                 Map.entry("allocation_min", this.allocationMin.getOrDefault(1)),
                 Map.entry("allocation_max", this.allocationMax.getOrDefault(1)),
-                Map.entry("allocation_margin", this.allocationMargin.getOrDefault(2))
+                Map.entry("allocation_margin", this.allocationMargin.getOrDefault(2)),
+                Map.entry("allocation_strategy", this.allocationStrategy.getOrDefault(Allocator.STRATEGY_FRONT_BACK))
         );
     }
 
+    @Override
+    @External()
+    public void set_allocation_strategy(String strategy) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        Context.require(Allocator.STRATEGY_FRONT_BACK.equals(strategy) || Allocator.STRATEGY_RENDEZVOUS.equals(strategy)
+                        || Allocator.STRATEGY_CAPACITY.equals(strategy),
+                "Invalid allocation strategy.");
+        Context.require(!strategy.equals(this.allocationStrategy.getOrDefault(Allocator.STRATEGY_FRONT_BACK)),
+                "The allocation strategy is not changed.");
+
+        this.allocationStrategy.set(strategy);
+    }
+
     @Override
     @External()
     public void pin(String cid,
@@ -188,40 +467,136 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                     @Optional String name,
                     @Optional String did_sign,
                     @Optional String[] user_allocations) {
-        Context.require(!cid.isEmpty(), "Blank key is not allowed.");
-        Context.require(expire_at.compareTo(BigInteger.ZERO) > 0, "expire_at must be greater than 0.");
         BigInteger blockTimestamp = BigInteger.valueOf(Context.getBlockTimestamp());
-        Context.require(expire_at.compareTo(blockTimestamp) > 0, "expire_at must be greater than blockTimestamp");
+        requirePinParams(cid, expire_at, blockTimestamp);
 
+        TxCache cache = newTxCache();
         String owner = Context.getCaller().toString();
         if (did_sign != null) {
+            var sigChecker = new SignatureChecker(this.publicKeyCache);
+            Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
+            owner = sigChecker.getOwnerId();
             var expected = new Payload.Builder("pin")
                     .cid(cid)
                     .size(size)
                     .expire_at(expire_at)
+                    .baseHeight(getPinBaseHeight(cache, owner, cid))
+                    .build();
+            Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
+        }
+
+        addPin(cache, owner, cid, size, expire_at, group, name, user_allocations);
+        cache.flushUsage();
+        BFSEvent(EventType.AddPin.name(), cid, owner);
+    }
+
+    @Override
+    @External()
+    public void pin_batch(String[] cids,
+                          BigInteger[] sizes,
+                          BigInteger[] expire_ats,
+                          @Optional String[] names,
+                          @Optional String group,
+                          @Optional String did_sign) {
+        requireBatchSize(cids);
+        Context.require(sizes.length == cids.length && expire_ats.length == cids.length,
+                "cids, sizes and expire_ats must have the same length.");
+        Context.require(names == null || names.length == cids.length, "names must have the same length as cids.");
+
+        BigInteger blockTimestamp = BigInteger.valueOf(Context.getBlockTimestamp());
+        for (int i = 0; i < cids.length; i++) {
+            requirePinParams(cids[i], expire_ats[i], blockTimestamp);
+        }
+
+        TxCache cache = newTxCache();
+        String owner = Context.getCaller().toString();
+        if (did_sign != null) {
+            var sigChecker = new SignatureChecker(this.publicKeyCache);
+            Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
+            owner = sigChecker.getOwnerId();
+            // One signature covers the whole batch, based on the latest update among the pins it replaces.
+            long baseHeight = 0;
+            for (String cid : cids) {
+                baseHeight = Math.max(baseHeight, getPinBaseHeight(cache, owner, cid));
+            }
+            var expected = new Payload.Builder("pin_batch")
+                    .cids(cids)
+                    .sizes(sizes)
+                    .expire_ats(expire_ats)
+                    .names(names)
+                    .group(group)
+                    .baseHeight(baseHeight)
                     .build();
-            owner = getVerifiedDid(did_sign, expected);
+            Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
         }
 
-        Context.require(get_pin(owner, cid) == null, "cid already exists");
+        for (int i = 0; i < cids.length; i++) {
+            addPin(cache, owner, cids[i], sizes[i], expire_ats[i], group, (names != null) ? names[i] : null, null);
+        }
+        cache.flushUsage();
+        BFSBatchEvent(EventType.AddPin.name(), owner, Helper.StringListToJsonArray(cids));
+    }
+
+    // A signed pin of a CID which the owner pinned before must be based on the last update of that pin, unpinned
+    // or deleted since, so that the signature of an earlier pin cannot pin the CID again. Returns 0 for a new CID.
+    private long getPinBaseHeight(TxCache cache, String owner, String cid) {
+        PinInfo pinInfo = cache.getPin(owner, cid);
+        if (pinInfo != null) {
+            return pinInfo.getLastUpdated();
+        }
+        return cache.getOrDefault(this.deletedPins, Helper.PinKey(owner, cid), 0L);
+    }
+
+    // Deletes the pin, and keeps its last update for getPinBaseHeight.
+    private void deletePin(TxCache cache, String owner, PinInfo pinInfo) {
+        cache.setPin(owner, pinInfo.getCid(), null);
+        this.deletedPins.set(Helper.PinKey(owner, pinInfo.getCid()), pinInfo.getLastUpdated());
+    }
 
-        CidInfo cidInfo = this.cidInfos.get(cid);
+    private void requirePinParams(String cid, BigInteger expire_at, BigInteger blockTimestamp) {
+        Context.require(!cid.isEmpty(), "Blank key is not allowed.");
+        Context.require(expire_at.compareTo(BigInteger.ZERO) > 0, "expire_at must be greater than 0.");
+        Context.require(expire_at.compareTo(blockTimestamp) > 0, "expire_at must be greater than blockTimestamp");
+    }
+
+    private void addPin(TxCache cache,
+                        String owner,
+                        String cid,
+                        BigInteger size,
+                        BigInteger expire_at,
+                        String group,
+                        String name,
+                        String[] user_allocations) {
+        CidInfo cidInfo = cache.getCid(cid);
+        PinInfo oldPin = cache.getPin(owner, cid);
+        // An unpinned pin can be pinned again.
+        Context.require(oldPin == null || UNPIN_STATE.equals(oldPin.getExpire_at()), "cid already exists");
+
+        String[] allocations;
         if (cidInfo == null) {
             // If the cid does not exist, create a new cid.
-            Integer replicationMin = this.allocationMin.getOrDefault(1);
-            Integer replicationMax = this.allocationMax.getOrDefault(1);
-            String[] userAllocations = makeAllocations(replicationMin, replicationMax, user_allocations);
+            AllocationSettings settings = getAllocationSettings(cache);
+            int replicationMin = settings.getAllocationMin();
+            int replicationMax = settings.getAllocationMax();
+            String[] userAllocations = makeAllocations(cache, settings, cid, size, user_allocations);
+            allocations = userAllocations;
             var cidBuilder = new CidInfo.Builder()
                     .cid(cid)
                     .size(size)
                     .replicationMin(BigInteger.valueOf(replicationMin))
                     .replicationMax(BigInteger.valueOf(replicationMax))
-                    .userAllocations(userAllocations)
-                    .shardSize(this.shardSize.get());
+                    .allocationHandles(internPeers(cache, userAllocations))
+                    .shardSize(settings.getShardSize());
 
             cidInfo = cidBuilder.build();
+        } else {
+            allocations = resolveAllocations(cache, cidInfo);
         }
+        countPin(cache, owner, cidInfo, 1);
         // If pin requests, increase the number of references.
+        if (cidInfo.getRefCnt() == 0) {
+            chargePeers(cache, cidInfo, true);
+        }
         cidInfo.setRefCnt(cidInfo.getRefCnt()+1);
 
         var pinBuilder = new PinInfo.Builder()
@@ -235,24 +610,35 @@ public class BfsContents implements BfsContent, BfsContentEvent{
 
         PinInfo pinInfo = pinBuilder.build();
 
-        this.pinInfos.at(owner).set(cid, pinInfo);
-        this.cidInfos.set(cid, cidInfo);
-
-        BFSEvent(EventType.AddPin.name(), cid, owner);
+        cache.setPin(owner, cid, pinInfo);
+        cache.setCid(cid, cidInfo);
+        this.ownerPins.add(cache, owner, cid);
+        indexExpiry(cache, owner, cid, expire_at);
+        if (group != null) {
+            this.groupPins.add(cache, Helper.PinKey(owner, group), cid);
+            // A group emptied by collect_expired is indexed again by its next pin.
+            GroupInfo groupInfo = cache.getGroup(owner, group);
+            if (groupInfo != null) {
+                indexGroupExpiry(cache, Helper.PinKey(owner, group), groupInfo.getExpire_at());
+            }
+        }
+        PinAdded(cid, owner, (size == null) ? BigInteger.ZERO : size, expire_at, (group == null) ? "" : group,
+                Helper.StringListToJsonArray(allocations));
+        recordChange(EventType.AddPin, Helper.PinKey(owner, cid));
     }
 
     @Override
     @External()
     public void unpin(String cid, @Optional String did_sign) {
         Context.require(!cid.isEmpty(), "Blank key is not allowed.");
+        TxCache cache = newTxCache();
         String owner = Context.getCaller().toString();
         PinInfo pinInfo = null;
         if (did_sign != null) {
-            var sigChecker = new SignatureChecker();
+            var sigChecker = new SignatureChecker(this.publicKeyCache);
             Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
             owner = sigChecker.getOwnerId();
-            pinInfo = this.pinInfos.at(owner).get(cid);
-            Context.require(pinInfo != null, "Invalid request(unpin) target.");
+            pinInfo = getActivePin(cache, owner, cid, "unpin");
             var expected = new Payload.Builder("unpin")
                     .cid(cid)
                     .baseHeight(pinInfo.getLastUpdated())
@@ -260,21 +646,358 @@ public class BfsContents implements BfsContent, BfsContentEvent{
 
             Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
         }else{
-            pinInfo = this.pinInfos.at(owner).get(cid);
-            Context.require(pinInfo != null, "Invalid request(unpin) target.");
+            pinInfo = getActivePin(cache, owner, cid, "unpin");
+        }
+
+        releasePin(cache, owner, pinInfo);
+        cache.flushUsage();
+        BFSEvent(EventType.UnPin.name(), cid, owner);
+    }
+
+    @Override
+    @External()
+    public void unpin_batch(String[] cids, @Optional String did_sign) {
+        requireBatchSize(cids);
+        requireDistinct(cids);
+        String owner = Context.getCaller().toString();
+        SignatureChecker sigChecker = null;
+        if (did_sign != null) {
+            sigChecker = new SignatureChecker(this.publicKeyCache);
+            Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
+            owner = sigChecker.getOwnerId();
+        }
+
+        // The base height of a batch is the latest update among its pins.
+        TxCache cache = newTxCache();
+        long baseHeight = 0;
+        for (String cid : cids) {
+            PinInfo pinInfo = getActivePin(cache, owner, cid, "unpin_batch");
+            baseHeight = Math.max(baseHeight, pinInfo.getLastUpdated());
+            releasePin(cache, owner, pinInfo);
+        }
+
+        if (sigChecker != null) {
+            var expected = new Payload.Builder("unpin_batch")
+                    .cids(cids)
+                    .baseHeight(baseHeight)
+                    .build();
+            Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
         }
+        cache.flushUsage();
+        BFSBatchEvent(EventType.UnPin.name(), owner, Helper.StringListToJsonArray(cids));
+    }
 
+    @Override
+    @External()
+    public void unpin_group(String group, BigInteger max_items, @Optional String did_sign) {
+        Context.require(!group.isEmpty(), "Blank key is not allowed.");
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+        TxCache cache = newTxCache();
+        String owner = Context.getCaller().toString();
+        if (did_sign != null) {
+            var sigChecker = new SignatureChecker(this.publicKeyCache);
+            Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
+            owner = sigChecker.getOwnerId();
+            // The same signature resumes the unpinning until the group is empty, and is then no longer valid.
+            GroupInfo groupInfo = cache.getGroup(owner, group);
+            long updated = Math.max((groupInfo != null) ? groupInfo.getLast_updated() : 1,
+                    cache.getOrDefault(this.groupUnpinned, Helper.PinKey(owner, group), 0L));
+            var expected = new Payload.Builder("unpin_group")
+                    .group(group)
+                    .baseHeight(updated)
+                    .build();
+            Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
+        }
 
+        String key = Helper.PinKey(owner, group);
+        int count = max_items.min(BigInteger.valueOf(MAX_BATCH_SIZE)).intValue();
+        List<String> unpinned = new ArrayList<>();
+        int size = this.groupPins.size(cache, key);
+        for (int i = 0; i < count && size > 0; i++, size--) {
+            String cid = this.groupPins.get(cache, key, size - 1);
+            PinInfo pinInfo = cache.getPin(owner, cid);
+            if (pinInfo == null || UNPIN_STATE.equals(pinInfo.getExpire_at())) {
+                this.groupPins.remove(cache, key, cid);
+                continue;
+            }
+            releasePin(cache, owner, pinInfo);
+            unpinned.add(cid);
+        }
+        if (size == 0) {
+            this.groupUnpinned.set(key, Context.getBlockHeight());
+        }
+        cache.flushUsage();
+
+        String[] cids = new String[unpinned.size()];
+        for (int i = 0; i < cids.length; i++) {
+            cids[i] = unpinned.get(i);
+        }
+        BFSBatchEvent(EventType.UnPin.name(), owner, Helper.StringListToJsonArray(cids));
+    }
+
+    private void releasePin(TxCache cache, String owner, PinInfo pinInfo) {
+        unindexExpiry(cache, owner, pinInfo.getCid(), pinInfo.getExpire_at());
         pinInfo.setExpireAt(UNPIN_STATE);
         pinInfo.setLastUpdated(Context.getBlockHeight());
 
-        CidInfo cidInfo = this.cidInfos.get(cid);
+        CidInfo cidInfo = cache.getCid(pinInfo.getCid());
+        countPin(cache, owner, cidInfo, -1);
+        releaseCid(cache, cidInfo);
+
+        // The pin is kept as unpinned for the grace window, so that it can still be read. Its last update is
+        // kept after it is deleted, which a signed pin of the CID must be based on, see getPinBaseHeight.
+        if (getTombstoneGrace(cache) == 0) {
+            deletePin(cache, owner, pinInfo);
+        } else {
+            cache.setPin(owner, pinInfo.getCid(), pinInfo);
+            long seq = cache.getOrDefault(this.tombstoneTail, 0L);
+            this.tombstones.set(seq, new Tombstone(owner, pinInfo.getCid(), Context.getBlockHeight()));
+            this.tombstoneTail.set(seq + 1);
+        }
+        unindexPin(cache, owner, pinInfo);
+        PinRemoved(pinInfo.getCid(), owner, false);
+        recordChange(EventType.UnPin, Helper.PinKey(owner, pinInfo.getCid()));
+    }
+
+    @Override
+    @External()
+    public void collect_expired(BigInteger max_items) {
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+        TxCache cache = newTxCache();
+        BigInteger cursor = cache.read(this.expiryCursor);
+        if (cursor == null) {
+            return;
+        }
+
+        // Only buckets which have fully passed are collected, so an expired pin may stay up to one bucket longer.
+        BigInteger now = BigInteger.valueOf(Context.getBlockTimestamp());
+        BigInteger currentBucket = getExpiryBucket(now);
+        int budget = max_items.min(BigInteger.valueOf(MAX_BATCH_SIZE)).intValue();
+        while (budget > 0 && cursor.compareTo(currentBucket) < 0) {
+            budget--;
+            String bucket = cursor.toString();
+            int size = this.expiryBuckets.size(cache, bucket);
+            if (size > 0) {
+                String pinKey = this.expiryBuckets.get(cache, bucket, size - 1);
+                this.expiryBuckets.remove(cache, bucket, pinKey);
+                String owner = Helper.PinKeyOwner(pinKey);
+                PinInfo pinInfo = getActivePinOrNull(cache, owner, Helper.PinKeyCid(pinKey));
+                // The expiration of the group overrides the one of the pin as in get_pin, and the entry of the group
+                // collects the pin then.
+                GroupInfo groupInfo = (pinInfo == null) ? null : cache.getGroup(owner, pinInfo.getGroup());
+                if (pinInfo != null && (groupInfo == null || groupInfo.getExpire_at().compareTo(now) <= 0)) {
+                    removeExpiredPin(cache, owner, pinInfo);
+                }
+                continue;
+            }
+
+            size = this.groupExpiryBuckets.size(cache, bucket);
+            if (size == 0) {
+                cursor = cursor.add(BigInteger.ONE);
+                continue;
+            }
+
+            // The group stays in the window until all of its pins are collected, one per entry of the budget.
+            String key = this.groupExpiryBuckets.get(cache, bucket, size - 1);
+            int pins = this.groupPins.size(cache, key);
+            if (pins == 0) {
+                this.groupExpiryBuckets.remove(cache, bucket, key);
+                this.groupBuckets.set(key, null);
+                continue;
+            }
+            String owner = Helper.PinKeyOwner(key);
+            String cid = this.groupPins.get(cache, key, pins - 1);
+            PinInfo pinInfo = getActivePinOrNull(cache, owner, cid);
+            if (pinInfo == null) {
+                this.groupPins.remove(cache, key, cid);
+                continue;
+            }
+            unindexExpiry(cache, owner, cid, pinInfo.getExpire_at());
+            removeExpiredPin(cache, owner, pinInfo);
+        }
+        cache.flushUsage();
+        this.expiryCursor.set(cursor);
+    }
+
+    private PinInfo getActivePinOrNull(TxCache cache, String owner, String cid) {
+        PinInfo pinInfo = cache.getPin(owner, cid);
+        return (pinInfo == null || UNPIN_STATE.equals(pinInfo.getExpire_at())) ? null : pinInfo;
+    }
+
+    private void removeExpiredPin(TxCache cache, String owner, PinInfo pinInfo) {
+        String cid = pinInfo.getCid();
+        deletePin(cache, owner, pinInfo);
+        CidInfo cidInfo = cache.getCid(cid);
+        countPin(cache, owner, cidInfo, -1);
+        releaseCid(cache, cidInfo);
+        unindexPin(cache, owner, pinInfo);
+        BFSEvent(EventType.RemovePin.name(), cid, owner);
+        PinRemoved(cid, owner, true);
+        recordChange(EventType.RemovePin, Helper.PinKey(owner, cid));
+    }
+
+    private void unindexPin(TxCache cache, String owner, PinInfo pinInfo) {
+        this.ownerPins.remove(cache, owner, pinInfo.getCid());
+        if (pinInfo.getGroup() != null) {
+            this.groupPins.remove(cache, Helper.PinKey(owner, pinInfo.getGroup()), pinInfo.getCid());
+        }
+    }
+
+    // Adds (count 1) or removes (count -1) a pin of the CID in the usage of the owner and in the total usage.
+    // The usage is written once per call by TxCache.flushUsage.
+    private void countPin(TxCache cache, String owner, CidInfo cidInfo, int count) {
+        BigInteger size = (cidInfo.getSize() == null) ? BigInteger.ZERO : cidInfo.getSize();
+        UsageInfo usage = cache.getUsage(owner);
+        usage.add(count, size);
+        if (count > 0) {
+            BigInteger quota = cache.getQuota(owner);
+            Context.require(quota == null || usage.getBytes().compareTo(quota) <= 0, "Quota exceeded.");
+        }
+        cache.getTotalUsage().add(count, size);
+    }
+
+    private UsageInfo getUsage(String owner) {
+        return this.ownerUsage.getOrDefault(owner, new UsageInfo(0, BigInteger.ZERO));
+    }
+
+    // Releases a reference to the CID, and deletes it when no one pins it anymore.
+    private void releaseCid(TxCache cache, CidInfo cidInfo) {
         cidInfo.setRefCnt(cidInfo.getRefCnt()-1);
+        if (cidInfo.getRefCnt() > 0) {
+            cache.setCid(cidInfo.getCid(), cidInfo);
+            return;
+        }
 
-        this.pinInfos.at(owner).set(cid, pinInfo);
-        this.cidInfos.set(cid, cidInfo);
+        chargePeers(cache, cidInfo, false);
+        removeCid(cache, cidInfo);
+    }
 
-        BFSEvent(EventType.UnPin.name(), cid, owner);
+    private void removeCid(TxCache cache, CidInfo cidInfo) {
+        cache.setCid(cidInfo.getCid(), null);
+        CidRemoved(cidInfo.getCid(), Helper.StringListToJsonArray(resolveAllocations(cache, cidInfo)));
+        recordChange(EventType.RemoveCid, cidInfo.getCid());
+    }
+
+    // Deletes the pin if it has been unpinned at or before the height, i.e. it was not pinned again since.
+    private void purgeTombstone(TxCache cache, String owner, String cid, long height) {
+        PinInfo pinInfo = cache.getPin(owner, cid);
+        if (pinInfo != null && UNPIN_STATE.equals(pinInfo.getExpire_at()) && pinInfo.getLastUpdated() <= height) {
+            deletePin(cache, owner, pinInfo);
+            recordChange(EventType.RemovePin, Helper.PinKey(owner, cid));
+        }
+    }
+
+    private long getTombstoneGrace(TxCache cache) {
+        return cache.getOrDefault(this.tombstoneGrace, DEFAULT_TOMBSTONE_GRACE);
+    }
+
+    @Override
+    @External
+    public void set_tombstone_grace(BigInteger blocks) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        Context.require(blocks.signum() >= 0, "Grace window must not be negative.");
+        this.tombstoneGrace.set(blocks.longValue());
+    }
+
+    @Override
+    @External(readonly=true)
+    public BigInteger get_tombstone_grace() {
+        return BigInteger.valueOf(getTombstoneGrace(newTxCache()));
+    }
+
+    @Override
+    @External
+    public void purge_tombstones(BigInteger max_items) {
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+        TxCache cache = newTxCache();
+        long limit = Context.getBlockHeight() - getTombstoneGrace(cache);
+        long head = cache.getOrDefault(this.tombstoneHead, 0L);
+        long tail = cache.getOrDefault(this.tombstoneTail, 0L);
+        int count = max_items.min(BigInteger.valueOf(MAX_BATCH_SIZE)).intValue();
+        for (int i = 0; i < count && head < tail; i++) {
+            Tombstone tombstone = cache.read(this.tombstones, head);
+            // The pins are queued in the order they were unpinned, the next ones are younger.
+            if (tombstone.getHeight() > limit) {
+                break;
+            }
+            this.tombstones.set(head, null);
+            head++;
+            purgeTombstone(cache, tombstone.getOwner(), tombstone.getCid(), tombstone.getHeight());
+        }
+        this.tombstoneHead.set(head);
+    }
+
+    @Override
+    @External
+    public void purge_pins(String owner, String[] cids) {
+        requireBatchSize(cids);
+        TxCache cache = newTxCache();
+        long limit = Context.getBlockHeight() - getTombstoneGrace(cache);
+        for (String cid : cids) {
+            purgeTombstone(cache, owner, cid, limit);
+            // CIDs unpinned before they were deleted at refCnt 0
+            CidInfo cidInfo = cache.getCid(cid);
+            if (cidInfo != null && cidInfo.getRefCnt() == 0) {
+                removeCid(cache, cidInfo);
+            }
+        }
+    }
+
+    private BigInteger getExpiryBucket(BigInteger expireAt) {
+        return expireAt.divide(EXPIRY_BUCKET_SIZE);
+    }
+
+    // A pin is always indexed by its own expire_at, which is later than the block timestamp, so that it is
+    // removed from the index by the same expire_at.
+    private void indexExpiry(TxCache cache, String owner, String cid, BigInteger expireAt) {
+        initExpiryCursor(cache);
+        this.expiryBuckets.add(cache, getExpiryBucket(expireAt).toString(), Helper.PinKey(owner, cid));
+    }
+
+    private void unindexExpiry(TxCache cache, String owner, String cid, BigInteger expireAt) {
+        this.expiryBuckets.remove(cache, getExpiryBucket(expireAt).toString(), Helper.PinKey(owner, cid));
+    }
+
+    // Moves the group to the window of its expire_at. A group may expire in the past, which is collected from the
+    // current window, as the windows before it may have been collected already.
+    private void indexGroupExpiry(TxCache cache, String key, BigInteger expireAt) {
+        BigInteger current = getExpiryBucket(BigInteger.valueOf(Context.getBlockTimestamp()));
+        BigInteger bucket = getExpiryBucket(expireAt).max(current);
+        BigInteger indexed = cache.read(this.groupBuckets, key);
+        if (bucket.equals(indexed)) {
+            return;
+        }
+        if (indexed != null) {
+            this.groupExpiryBuckets.remove(cache, indexed.toString(), key);
+        }
+        initExpiryCursor(cache);
+        this.groupExpiryBuckets.add(cache, bucket.toString(), key);
+        this.groupBuckets.set(key, bucket);
+    }
+
+    private void initExpiryCursor(TxCache cache) {
+        if (cache.read(this.expiryCursor) == null) {
+            this.expiryCursor.set(getExpiryBucket(BigInteger.valueOf(Context.getBlockTimestamp())));
+        }
+    }
+
+    private PinInfo getActivePin(TxCache cache, String owner, String cid, String method) {
+        PinInfo pinInfo = cache.getPin(owner, cid);
+        Context.require(pinInfo != null && !UNPIN_STATE.equals(pinInfo.getExpire_at()),
+                "Invalid request(" + method + ") target: " + cid);
+        return pinInfo;
+    }
+
+    private void requireBatchSize(String[] items) {
+        Context.require(items.length > 0, "A batch must not be empty.");
+        Context.require(items.length <= MAX_BATCH_SIZE, "Too many items in a batch.");
+    }
+
+    private void requireDistinct(String[] cids) {
+        Map<String, Boolean> seen = new HashMap<>();
+        for (String cid : cids) {
+            Context.require(seen.put(cid, Boolean.TRUE) == null, "duplicate cid");
+        }
     }
 
     @Override
@@ -286,14 +1009,14 @@ public class BfsContents implements BfsContent, BfsContentEvent{
         BigInteger blockTimestamp = BigInteger.valueOf(Context.getBlockTimestamp());
         Context.require(expire_at.compareTo(blockTimestamp) > 0, "expire_at must be greater than blockTimestamp");
 
+        TxCache cache = newTxCache();
         PinInfo pinInfo = null;
         String owner = Context.getCaller().toString();
         if (did_sign != null) {
-            var sigChecker = new SignatureChecker();
+            var sigChecker = new SignatureChecker(this.publicKeyCache);
             Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
             owner = sigChecker.getOwnerId();
-            pinInfo = this.pinInfos.at(owner).get(cid);
-            Context.require(pinInfo != null, "Invalid request(update_pin) target.");
+            pinInfo = getActivePin(cache, owner, cid, "update_pin");
             var expected = new Payload.Builder("update_pin")
                     .cid(cid)
                     .expire_at(expire_at)
@@ -302,18 +1025,66 @@ public class BfsContents implements BfsContent, BfsContentEvent{
 
             Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
         }else{
-            pinInfo = this.pinInfos.at(owner).get(cid);
-            Context.require(pinInfo != null, "Invalid request(update_pin) target.");
+            pinInfo = getActivePin(cache, owner, cid, "update_pin");
         }
 
         var attrs = new PinInfo.Builder()
                 .expireAt(expire_at);
         attrs.lastUpdated(Context.getBlockHeight());
 
+        unindexExpiry(cache, owner, cid, pinInfo.getExpire_at());
         pinInfo.update(attrs);
+        indexExpiry(cache, owner, cid, expire_at);
 
-        this.pinInfos.at(owner).set(cid, pinInfo);
+        cache.setPin(owner, cid, pinInfo);
         BFSEvent(EventType.UpdatePin.name(), cid, pinInfo.getOwner());
+        PinUpdated(cid, owner, expire_at);
+        recordChange(EventType.UpdatePin, Helper.PinKey(owner, cid));
+    }
+
+    @Override
+    @External()
+    public void update_pin_batch(String[] cids,
+                                 BigInteger expire_at,
+                                 @Optional String did_sign) {
+        requireBatchSize(cids);
+        requireDistinct(cids);
+        BigInteger blockTimestamp = BigInteger.valueOf(Context.getBlockTimestamp());
+        Context.require(expire_at.compareTo(blockTimestamp) > 0, "expire_at must be greater than blockTimestamp");
+
+        String owner = Context.getCaller().toString();
+        SignatureChecker sigChecker = null;
+        if (did_sign != null) {
+            sigChecker = new SignatureChecker(this.publicKeyCache);
+            Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
+            owner = sigChecker.getOwnerId();
+        }
+
+        var attrs = new PinInfo.Builder()
+                .expireAt(expire_at)
+                .lastUpdated(Context.getBlockHeight());
+        TxCache cache = newTxCache();
+        long baseHeight = 0;
+        for (String cid : cids) {
+            PinInfo pinInfo = getActivePin(cache, owner, cid, "update_pin_batch");
+            baseHeight = Math.max(baseHeight, pinInfo.getLastUpdated());
+            unindexExpiry(cache, owner, cid, pinInfo.getExpire_at());
+            pinInfo.update(attrs);
+            indexExpiry(cache, owner, cid, expire_at);
+            cache.setPin(owner, cid, pinInfo);
+            PinUpdated(cid, owner, expire_at);
+            recordChange(EventType.UpdatePin, Helper.PinKey(owner, cid));
+        }
+
+        if (sigChecker != null) {
+            var expected = new Payload.Builder("update_pin_batch")
+                    .cids(cids)
+                    .expire_at(expire_at)
+                    .baseHeight(baseHeight)
+                    .build();
+            Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
+        }
+        BFSBatchEvent(EventType.UpdatePin.name(), owner, Helper.StringListToJsonArray(cids));
     }
 
 
@@ -323,6 +1094,69 @@ public class BfsContents implements BfsContent, BfsContentEvent{
         return this.nodeInfos.get(peer_id);
     }
 
+    @Override
+    @External(readonly=true)
+    public Map<String, Object> get_node_usage(String peer_id) {
+        NodeInfo nodeInfo = this.nodeInfos.get(peer_id);
+        if (nodeInfo == null) {
+            return null;
+        }
+        TxCache cache = newTxCache();
+        Integer handle = cache.getHandle(peer_id);
+        BigInteger used = (handle == null) ? BigInteger.ZERO : cache.getUsedBytes(handle);
+
+        Map<String, Object> usage = new HashMap<>();
+        usage.put("used", used);
+        if (nodeInfo.getCapacity() != null) {
+            usage.put("capacity", nodeInfo.getCapacity());
+            usage.put("free", nodeInfo.getCapacity().subtract(used));
+        }
+        return usage;
+    }
+
+    @Override
+    @External(readonly=true)
+    public Map<String, Object> get_node_digest(String peer_id) {
+        TxCache cache = newTxCache();
+        Integer handle = cache.getHandle(peer_id);
+        byte[] digest = (handle == null) ? null : cache.read(this.peerDigests, handle);
+        return Map.ofEntries(
+                Map.entry("count", (handle == null) ? 0 : this.peerCids.size(cache, String.valueOf(handle))),
+                Map.entry("digest", (digest == null) ? new byte[32] : digest)
+        );
+    }
+
+    @Override
+    @External(readonly=true)
+    public Map<String, Object> get_node_pins(String peer_id, BigInteger cursor, BigInteger limit) {
+        TxCache cache = newTxCache();
+        Integer handle = cache.getHandle(peer_id);
+        String key = String.valueOf(handle);
+        int total = (handle == null) ? 0 : this.peerCids.size(cache, key);
+        int start = getPageStart(cursor, total);
+        int end = getPageEnd(start, limit, total);
+
+        Object[] pins = new Object[end - start];
+        for (int i = start; i < end; i++) {
+            CidInfo cidInfo = cache.getCid(this.peerCids.get(cache, key, i));
+            Map<String, Object> pin = new HashMap<>();
+            pin.put("cid", cidInfo.getCid());
+            // Contents pinned before the size was required have none.
+            if (cidInfo.getSize() != null) {
+                pin.put("size", cidInfo.getSize());
+            }
+            pin.put("replication_min", cidInfo.getReplication_min());
+            pin.put("replication_max", cidInfo.getReplication_max());
+            pin.put("shard_size", cidInfo.getShard_size());
+            pins[i - start] = pin;
+        }
+        return Map.ofEntries(
+                Map.entry("total", total),
+                Map.entry("next", end),
+                Map.entry("pins", List.of(pins))
+        );
+    }
+
     @Override
     @External()
     @Payable
@@ -330,10 +1164,13 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                          String url,
                          @Optional String endpoint,
                          @Optional String name,
-                         @Optional Address owner) {
+                         @Optional Address owner,
+                         @Optional BigInteger capacity) {
         Context.require(!peer_id.isEmpty(), "Blank key is not allowed.");
         Context.require(url.startsWith("http://") || url.startsWith("https://"), "Invalid URL format.");
-        Context.require(this.nodeInfos.get(peer_id) == null, "It has already been added.");
+        Context.require(capacity == null || capacity.signum() >= 0, "capacity must not be negative.");
+        TxCache cache = newTxCache();
+        Context.require(cache.getNode(peer_id) == null, "It has already been added.");
 
         Address ownerAddress = (owner == null) ? Context.getCaller() : owner;
 
@@ -343,41 +1180,190 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                 .name(name)
                 .endpoint(endpoint)
                 .created(Context.getBlockHeight())
-                .owner(ownerAddress);
+                .owner(ownerAddress)
+                .capacity(capacity);
 
         NodeInfo nodeInfo = nodeBuilder.build();
-        this.nodeInfos.set(peer_id, nodeInfo);
-
-        removeNode(peer_id);
-        this.peers.add(peer_id);
+        cache.setNode(peer_id, nodeInfo);
+
+        removeNode(cache, peer_id);
+        addPeer(cache, peer_id);
+        // Counts as its first heartbeat, so that the sweep only falls back to NodeInfo for the older nodes.
+        this.lastSeen.set(peer_id, Context.getBlockHeight());
+        int handle = internPeer(cache, peer_id);
+        if (capacity != null) {
+            setCapacity(cache, handle, capacity);
+        }
 
         if (endpoint != null) {
             BFSEvent(EventType.AddNode.name(), peer_id, endpoint);
         }else {
             BFSEvent(EventType.AddNode.name(), peer_id, "");
         }
+        NodeAdded(peer_id, ownerAddress, url, nodeInfo.getEndpoint());
+        recordChange(EventType.AddNode, peer_id);
+    }
+
+    @Override
+    @External
+    public void heartbeat(String peer_id) {
+        // The node is read once, so it is counted without being memoized.
+        TxCache cache = newTxCache();
+        NodeInfo nodeInfo = cache.read(this.nodeInfos, peer_id);
+        Context.require(nodeInfo != null, "Invalid request(heartbeat) target.");
+        if (!nodeInfo.checkOwner(Context.getCaller())) {
+            Context.revert(101, "You do not have permission. (heartbeat)");
+        }
+        this.lastSeen.set(peer_id, Context.getBlockHeight());
+        if (this.staleNodes.remove(cache, STALE_PEERS, peer_id)) {
+            addPeer(cache, peer_id);
+            if (nodeInfo.getCapacity() != null) {
+                setCapacity(cache, internPeer(cache, peer_id), nodeInfo.getCapacity());
+            }
+        }
+    }
+
+    @Override
+    @External
+    public void sweep_stale_nodes(BigInteger max_items) {
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+        TxCache cache = newTxCache();
+        long window = cache.getOrDefault(this.livenessWindow, 0L);
+        if (window == 0) {
+            return;
+        }
+
+        long minLastSeen = Context.getBlockHeight() - window;
+        long since = cache.getOrDefault(this.livenessSince, Long.MIN_VALUE);
+        if (since >= minLastSeen) {
+            // Every node is still within its first window.
+            return;
+        }
+        int budget = max_items.min(BigInteger.valueOf(MAX_BATCH_SIZE)).intValue();
+        int cursor = cache.getOrDefault(this.sweepCursor, 0);
+        int size = cache.size(this.peers);
+        for (; budget > 0 && cursor < size; budget--) {
+            String peer_id = cache.read(this.peers, cursor);
+            if (getPeerLastSeen(cache, peer_id, since) >= minLastSeen) {
+                cursor++;
+                continue;
+            }
+            // The last peer moves into the slot, so the cursor stays to check it.
+            dropStaleNode(cache, peer_id, cache.getHandle(peer_id));
+            size--;
+        }
+        this.sweepCursor.set((cursor >= size) ? null : cursor);
+    }
+
+    private void dropStaleNode(TxCache cache, String peer_id, Integer handle) {
+        removeNode(cache, peer_id);
+        this.staleNodes.add(cache, STALE_PEERS, peer_id);
+        if (handle != null) {
+            this.capacityHeap.remove(cache, handle);
+        }
+    }
+
+    @Override
+    @External(readonly=true)
+    public BigInteger get_last_seen(String peer_id) {
+        long height = getLastSeen(peer_id);
+        return (height == Long.MIN_VALUE) ? null : BigInteger.valueOf(height);
+    }
+
+    @Override
+    @External
+    public void set_liveness_window(BigInteger blocks) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        Context.require(blocks.signum() >= 0, "Liveness window must not be negative.");
+        if (this.livenessWindow.getOrDefault(0L) == 0 && blocks.signum() > 0) {
+            this.livenessSince.set(Context.getBlockHeight());
+        }
+        this.livenessWindow.set(blocks.longValue());
+    }
+
+    @Override
+    @External(readonly=true)
+    public BigInteger get_liveness_window() {
+        return BigInteger.valueOf(this.livenessWindow.getOrDefault(0L));
     }
 
     @Override
     @External()
     public void remove_node(String peer_id) {
-        Context.require(this.nodeInfos.get(peer_id) != null, "Invalid request(remove_node) target.");
+        TxCache cache = newTxCache();
+        Context.require(cache.getNode(peer_id) != null, "Invalid request(remove_node) target.");
 
-        NodeInfo nodeInfo = this.nodeInfos.get(peer_id);
+        NodeInfo nodeInfo = cache.getNode(peer_id);
         if (!nodeInfo.checkOwner(Context.getCaller())) {
             Context.revert(101, "You do not have permission. (remove_node)");
         }
 
-        this.nodeInfos.set(peer_id, null);
-        removeNode(peer_id);
+        cache.setNode(peer_id, null);
+        removeNode(cache, peer_id);
+        this.staleNodes.remove(cache, STALE_PEERS, peer_id);
+        this.lastSeen.set(peer_id, null);
+        Integer handle = cache.getHandle(peer_id);
+        if (handle != null) {
+            this.capacityHeap.remove(cache, handle);
+        }
         if (nodeInfo.getEndpoint() != null) {
             BFSEvent(EventType.RemoveNode.name(), peer_id, nodeInfo.getEndpoint());
         }else {
             BFSEvent(EventType.RemoveNode.name(), peer_id, "");
         }
+        NodeRemoved(peer_id);
+        recordChange(EventType.RemoveNode, peer_id);
 
     }
 
+    @Override
+    @External
+    public void reallocate(String peer_id, BigInteger max_items) {
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+        TxCache cache = newTxCache();
+        Context.require(cache.getNode(peer_id) == null, "The node is not removed.");
+        Integer handle = cache.getHandle(peer_id);
+        Context.require(handle != null, "Invalid request(reallocate) target.");
+
+        String key = String.valueOf(handle);
+        int count = max_items.min(BigInteger.valueOf(MAX_BATCH_SIZE)).intValue();
+        // Every CID handled below leaves the index of the peer.
+        int size = this.peerCids.size(cache, key);
+        for (int i = 0; i < count && size > 0; i++, size--) {
+            String cid = this.peerCids.get(cache, key, size - 1);
+            CidInfo cidInfo = cache.getCid(cid);
+            int[] handles = (cidInfo == null) ? null : getAllocationHandles(cache, cidInfo);
+            int position = (handles == null) ? -1 : indexOf(handles, handle);
+            if (position < 0 || cidInfo.getRefCnt() == 0) {
+                // The CID no longer needs the peer.
+                this.peerCids.remove(cache, key, cid);
+                updateDigest(cache, handle, cid);
+                continue;
+            }
+
+            String replacement = pickReplacement(cache, cidInfo, handles);
+            int[] newHandles;
+            if (replacement != null) {
+                newHandles = new int[handles.length];
+                System.arraycopy(handles, 0, newHandles, 0, handles.length);
+                newHandles[position] = internPeer(cache, replacement);
+                chargePeer(cache, newHandles[position], cid, cidInfo.getSize(), true);
+            } else {
+                // Without any other peer, the CID keeps fewer replicas.
+                newHandles = new int[handles.length - 1];
+                System.arraycopy(handles, 0, newHandles, 0, position);
+                System.arraycopy(handles, position + 1, newHandles, position, newHandles.length - position);
+            }
+            chargePeer(cache, handle, cid, cidInfo.getSize(), false);
+
+            cidInfo.setAllocationHandles(newHandles);
+            cache.setCid(cid, cidInfo);
+            BFSEvent(EventType.Reallocation.name(), cid, (replacement == null) ? "" : replacement);
+            recordChange(EventType.Reallocation, cid);
+        }
+        cache.flushUsage();
+    }
+
     @Override
     @External()
     @Payable
@@ -385,34 +1371,61 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                             @Optional String url,
                             @Optional String endpoint,
                             @Optional String name,
-                            @Optional Address owner) {
-        Context.require(this.nodeInfos.get(peer_id) != null, "Invalid request(update_node) target.");
+                            @Optional Address owner,
+                            @Optional BigInteger capacity) {
+        TxCache cache = newTxCache();
+        Context.require(cache.getNode(peer_id) != null, "Invalid request(update_node) target.");
         Context.require(url == null || url.startsWith("http://") || url.startsWith("https://"), "Invalid URL format.");
+        Context.require(capacity == null || capacity.signum() >= 0, "capacity must not be negative.");
 
-        NodeInfo nodeInfo = this.nodeInfos.get(peer_id);
+        NodeInfo nodeInfo = cache.getNode(peer_id);
         if (!nodeInfo.checkOwner(Context.getCaller())) {
             Context.revert(101, "You do not have permission. (update_node)");
         }
 
         Address ownerAddress = (owner == null) ? Context.getCaller() : owner;
 
-        nodeInfo.update(name, url, endpoint, ownerAddress);
-        this.nodeInfos.set(peer_id, nodeInfo);
+        nodeInfo.update(name, url, endpoint, ownerAddress, capacity);
+        cache.setNode(peer_id, nodeInfo);
 
-        removeNode(peer_id);
-        this.peers.add(peer_id);
+        // A stale node stays out of the allocation until its next heartbeat.
+        if (!this.staleNodes.contains(cache, STALE_PEERS, peer_id)) {
+            removeNode(cache, peer_id);
+            addPeer(cache, peer_id);
+            if (capacity != null) {
+                setCapacity(cache, internPeer(cache, peer_id), capacity);
+            }
+        }
         if(nodeInfo.getEndpoint() != null) {
             BFSEvent(EventType.UpdateNode.name(), peer_id, nodeInfo.getEndpoint());
         }else{
             BFSEvent(EventType.UpdateNode.name(), peer_id, "");
         }
+        NodeUpdated(peer_id, nodeInfo.getOwner(), nodeInfo.getUrl(), nodeInfo.getEndpoint());
+        recordChange(EventType.UpdateNode, peer_id);
 
     }
 
     @Override
     @External(readonly=true)
     public Map<String, Object> check_allocations(String cid) {
-        CidInfo cidInfo = this.cidInfos.get(cid);
+        return checkAllocations(newTxCache(), cid);
+    }
+
+    @Override
+    @External(readonly=true)
+    public List<Object> check_allocations_batch(String[] cids) {
+        requireBatchSize(cids);
+        TxCache cache = newTxCache();
+        List<Object> allocations = new ArrayList<>();
+        for (String cid : cids) {
+            allocations.add(checkAllocations(cache, cid));
+        }
+        return allocations;
+    }
+
+    private Map<String, Object> checkAllocations(TxCache cache, String cid) {
+        CidInfo cidInfo = cache.getCid(cid);
         if (cidInfo == null) {
             return null;
         }
@@ -421,30 +1434,122 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                 Map.entry("size", cidInfo.getSize()),
                 Map.entry("replication_min", cidInfo.getReplication_min()),
                 Map.entry("replication_max", cidInfo.getReplication_max()),
-                Map.entry("user_allocations", cidInfo.getUser_allocations())
+                Map.entry("user_allocations", resolveAllocations(cache, cidInfo))
         );
     }
 
     @Override
     @External(readonly = true)
     public List<Object> all_node() {
-        Object[] allNode = new Object[this.peers.size()];
+        TxCache cache = newTxCache();
+        Object[] allNode = new Object[countNodes(cache)];
 
-        for (int i=0; i < this.peers.size(); i++) {
-            NodeInfo nodeInfo = this.nodeInfos.get(this.peers.get(i));
+        for (int i=0; i < allNode.length; i++) {
+            NodeInfo nodeInfo = cache.getNode(getNodeAt(cache, i));
             allNode[i] = nodeInfo;
         }
 
         return List.of(allNode);
     }
 
+    @Override
+    @External(readonly = true)
+    public Map<String, Object> get_nodes(BigInteger offset, BigInteger limit, @Optional boolean compact) {
+        TxCache cache = newTxCache();
+        int total = countNodes(cache);
+        int start = getPageStart(offset, total);
+        int end = getPageEnd(start, limit, total);
+
+        if (compact) {
+            String[] peerIds = new String[end - start];
+            String[] urls = new String[end - start];
+            String[] endpoints = new String[end - start];
+            for (int i = start; i < end; i++) {
+                NodeInfo nodeInfo = cache.getNode(getNodeAt(cache, i));
+                peerIds[i - start] = nodeInfo.getPeer_id();
+                urls[i - start] = nodeInfo.getUrl();
+                endpoints[i - start] = nodeInfo.getEndpoint();
+            }
+            return Map.ofEntries(
+                    Map.entry("total", total),
+                    Map.entry("peer_id", peerIds),
+                    Map.entry("url", urls),
+                    Map.entry("endpoint", endpoints)
+            );
+        }
+
+        Object[] nodes = new Object[end - start];
+        for (int i = start; i < end; i++) {
+            nodes[i - start] = cache.getNode(getNodeAt(cache, i));
+        }
+        return Map.ofEntries(
+                Map.entry("total", total),
+                Map.entry("nodes", List.of(nodes))
+        );
+    }
+
+    // Nodes are listed from the live peers, followed by the stale ones.
+    private int countNodes(TxCache cache) {
+        return cache.size(this.peers) + this.staleNodes.size(cache, STALE_PEERS);
+    }
+
+    private String getNodeAt(TxCache cache, int index) {
+        int live = cache.size(this.peers);
+        return (index < live) ? cache.read(this.peers, index) : this.staleNodes.get(cache, STALE_PEERS, index - live);
+    }
+
+    private int getPageStart(BigInteger offset, int total) {
+        Context.require(offset.signum() >= 0, "offset must not be negative.");
+        return offset.min(BigInteger.valueOf(total)).intValue();
+    }
+
+    private int getPageEnd(int start, BigInteger limit, int total) {
+        Context.require(limit.signum() > 0, "limit must be greater than 0.");
+        int pageSize = limit.min(BigInteger.valueOf(MAX_PAGE_SIZE)).intValue();
+        return Math.min(total, start + pageSize);
+    }
+
     @Override
     @External(readonly = true)
     public Map<String, Object> get_info() {
+        UsageInfo total = this.totalUsage.getOrDefault(new UsageInfo(0, BigInteger.ZERO));
+        TxCache cache = newTxCache();
+        int numOfPeers = cache.size(this.peers);
         return Map.ofEntries(
                 Map.entry("frontIndexOfPeers", frontIndexOfPeers.getOrDefault(0)),
-                Map.entry("backIndexOfPeers", backIndexOfPeers.getOrDefault(this.peers.size())),
-                Map.entry("NumOfPeers", this.peers.size())
+                Map.entry("backIndexOfPeers", backIndexOfPeers.getOrDefault(numOfPeers)),
+                Map.entry("NumOfPeers", numOfPeers),
+                Map.entry("NumOfStalePeers", this.staleNodes.size(cache, STALE_PEERS)),
+                Map.entry("total_pins", BigInteger.valueOf(total.getPins())),
+                Map.entry("total_bytes", total.getBytes()),
+                Map.entry("cids", this.cidCount.getOrDefault(BigInteger.ZERO)),
+                Map.entry("stored_bytes", this.storedBytes.getOrDefault(BigInteger.ZERO))
+        );
+    }
+
+    @Override
+    @External
+    public void set_quota(String owner, @Optional BigInteger bytes) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        Context.require(bytes == null || bytes.signum() >= 0, "Quota must not be negative.");
+        this.ownerQuotas.set(owner, bytes);
+    }
+
+    @Override
+    @External(readonly = true)
+    public Map<String, Object> get_usage(String owner) {
+        UsageInfo usage = getUsage(owner);
+        BigInteger quota = this.ownerQuotas.get(owner);
+        if (quota == null) {
+            return Map.ofEntries(
+                    Map.entry("pins", BigInteger.valueOf(usage.getPins())),
+                    Map.entry("bytes", usage.getBytes())
+            );
+        }
+        return Map.ofEntries(
+                Map.entry("pins", BigInteger.valueOf(usage.getPins())),
+                Map.entry("bytes", usage.getBytes()),
+                Map.entry("quota", quota)
         );
     }
 
@@ -452,13 +1557,14 @@ public class BfsContents implements BfsContent, BfsContentEvent{
     @External
     public void update_group(String group, BigInteger expire_at, @Optional String did_sign) {
         Context.require(!group.isEmpty(), "Blank key is not allowed.");
+        TxCache cache = newTxCache();
         String owner = Context.getCaller().toString();
         GroupInfo groupInfo = null;
         if (did_sign != null) {
-            var sigChecker = new SignatureChecker();
+            var sigChecker = new SignatureChecker(this.publicKeyCache);
             Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
             owner = sigChecker.getOwnerId();
-            groupInfo = get_group(owner, group);
+            groupInfo = cache.getGroup(owner, group);
 
             var updated = (groupInfo != null) ? groupInfo.getLast_updated() : 1;
             var expectedPayload = new Payload.Builder("update_group")
@@ -468,7 +1574,7 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                     .build();
             Context.require(sigChecker.validatePayload(expectedPayload), "failed to validate payload");
         }else{
-            groupInfo = get_group(owner, group);
+            groupInfo = cache.getGroup(owner, group);
         }
 
         if (groupInfo != null) {
@@ -488,8 +1594,12 @@ public class BfsContents implements BfsContent, BfsContentEvent{
                     .created(Context.getBlockHeight())
                     .build();
         }
-        this.groupInfos.at(owner).set(group, groupInfo);
+        cache.setGroup(owner, group, groupInfo);
+        // Its pins are collected through the group, so moving the group moves all of them.
+        indexGroupExpiry(cache, Helper.PinKey(owner, group), expire_at);
         BFSEvent(EventType.UpdateGroup.name(), group, owner);
+        GroupUpdated(group, owner, expire_at);
+        recordChange(EventType.UpdateGroup, Helper.PinKey(owner, group));
     }
 
     @Override
@@ -499,37 +1609,325 @@ public class BfsContents implements BfsContent, BfsContentEvent{
     }
 
 
-    private void removeNode(String peer_id) {
-        if (!checkPeerExist(peer_id)) {
-            return;
+    @External
+    public void migrate_peer_index(BigInteger max_items) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        TxCache cache = newTxCache();
+        Context.require(!isPeerIndexReady(cache), "The peer index is already built.");
+        Context.require(max_items.compareTo(BigInteger.ZERO) > 0, "max_items must be greater than 0.");
+
+        int size = cache.size(this.peers);
+        int count = cache.getOrDefault(this.indexedPeers, 0);
+        int cursor = cache.getOrDefault(this.peerIndexCursor, 0);
+        if (cursor >= size) {
+            // Peers moved by remove_node during the migration may need another pass.
+            cursor = 0;
+        }
+        int end = cursor + max_items.min(BigInteger.valueOf(size - cursor)).intValue();
+        for (int i = cursor; i < end; i++) {
+            String peer = cache.read(this.peers, i);
+            if (cache.read(this.peerIndexes, peer) == null) {
+                this.peerIndexes.set(peer, i);
+                count++;
+            }
         }
 
-        String top = this.peers.pop();
-        if (!top.equals(peer_id)) {
-            for (int i = 0; i < this.peers.size(); i++) {
-                if (peer_id.equals(this.peers.get(i))) {
-                    this.peers.set(i, top);
-                    break;
-                }
+        this.indexedPeers.set(count);
+        this.peerIndexCursor.set((end >= size) ? null : end);
+    }
+
+    // Pins made before the pins were indexed by owner, group and expiry cannot be enumerated, so the caller lists
+    // them, e.g. from the PinAdded events. A listed pin which has expired is removed right away.
+    @External
+    public void migrate_pin_index(String owner, String[] cids) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        requireBatchSize(cids);
+        BigInteger now = BigInteger.valueOf(Context.getBlockTimestamp());
+        TxCache cache = newTxCache();
+        for (String cid : cids) {
+            PinInfo pinInfo = getActivePinOrNull(cache, owner, cid);
+            if (pinInfo == null) {
+                continue;
+            }
+
+            this.ownerPins.add(cache, owner, cid);
+            String group = pinInfo.getGroup();
+            if (group != null && !group.isEmpty()) {
+                this.groupPins.add(cache, Helper.PinKey(owner, group), cid);
+            }
+            GroupInfo groupInfo = cache.getGroup(owner, group);
+            if (groupInfo != null) {
+                indexGroupExpiry(cache, Helper.PinKey(owner, group), groupInfo.getExpire_at());
+            } else if (pinInfo.getExpire_at().compareTo(now) > 0) {
+                indexExpiry(cache, owner, cid, pinInfo.getExpire_at());
+            } else {
+                removeExpiredPin(cache, owner, pinInfo);
             }
         }
+        cache.flushUsage();
     }
 
-    public boolean checkPeerExist(String peer_id) {
-        //TODO: iteration is not efficient. Consider to use a Map.
-        for (int i = 0; i < this.peers.size(); i++) {
-            if (peer_id.equals(this.peers.get(i))) {
+    // Contents pinned before the contents of each peer were indexed are not found by reallocate, so the caller lists
+    // them like in migrate_pin_index. They are charged on their peers as if they were pinned now.
+    @External
+    public void migrate_peer_cids(String[] cids) {
+        Context.require(Context.getCaller().equals(Context.getOwner()), "Only owner can call this method.");
+        requireBatchSize(cids);
+        TxCache cache = newTxCache();
+        for (String cid : cids) {
+            CidInfo cidInfo = cache.getCid(cid);
+            if (cidInfo == null || cidInfo.getRefCnt() == 0 || isPeerIndexed(cache, cidInfo)) {
+                continue;
+            }
+            chargePeers(cache, cidInfo, true);
+        }
+        cache.flushUsage();
+    }
+
+    private boolean isPeerIndexed(TxCache cache, CidInfo cidInfo) {
+        for (int handle : getAllocationHandles(cache, cidInfo)) {
+            if (this.peerCids.contains(cache, String.valueOf(handle), cidInfo.getCid())) {
                 return true;
             }
         }
         return false;
     }
 
-    private String getVerifiedDid(String did_sign, Payload expected){
-        var sigChecker = new SignatureChecker();
-        Context.require(sigChecker.verifySig(get_did_score(), did_sign), "failed to verify did_sign");
-        Context.require(sigChecker.validatePayload(expected), "failed to validate payload");
-        return sigChecker.getOwnerId();
+    private boolean isPeerIndexReady(TxCache cache) {
+        return cache.getOrDefault(this.indexedPeers, 0) == cache.size(this.peers);
+    }
+
+    // Returns the handle of the peer, assigning the next one to a peer seen for the first time.
+    // Handles are never released, so a re-added peer gets its previous handle back.
+    private int internPeer(TxCache cache, String peer_id) {
+        Integer handle = cache.getHandle(peer_id);
+        if (handle == null) {
+            handle = cache.getOrDefault(this.lastPeerHandle, 0) + 1;
+            this.lastPeerHandle.set(handle);
+            cache.setHandle(peer_id, handle);
+        }
+        return handle;
+    }
+
+    private int[] internPeers(TxCache cache, String[] peer_ids) {
+        int[] handles = new int[peer_ids.length];
+        for (int i = 0; i < peer_ids.length; i++) {
+            handles[i] = internPeer(cache, peer_ids[i]);
+        }
+        return handles;
+    }
+
+    private String[] resolveAllocations(TxCache cache, CidInfo cidInfo) {
+        int[] handles = cidInfo.getAllocationHandles();
+        if (handles == null) {
+            // Records written before the interning keep the peer IDs.
+            return cidInfo.getUser_allocations();
+        }
+        return resolveHandles(cache, handles);
+    }
+
+    // Returns up to count peers with the most free space. Like the peer list, the heap holds no stale peer
+    // once sweep_stale_nodes has dropped it, so allocation reads no liveness and changes nothing here.
+    private int[] topLivePeers(TxCache cache, int count, BigInteger needed) {
+        return this.capacityHeap.top(cache, count, needed);
+    }
+
+    private String[] resolveHandles(TxCache cache, int[] handles) {
+        String[] peer_ids = new String[handles.length];
+        for (int i = 0; i < handles.length; i++) {
+            peer_ids[i] = cache.getPeerId(handles[i]);
+        }
+        return peer_ids;
+    }
+
+    private void setCapacity(TxCache cache, int handle, BigInteger capacity) {
+        this.capacityHeap.set(cache, handle, capacity.subtract(cache.getUsedBytes(handle)));
+    }
+
+    private int[] getAllocationHandles(TxCache cache, CidInfo cidInfo) {
+        int[] handles = cidInfo.getAllocationHandles();
+        return (handles != null) ? handles : internPeers(cache, cidInfo.getUser_allocations());
+    }
+
+    // Counts a CID on its peers while it is pinned by anyone, i.e. when its refCnt leaves or reaches 0.
+    private void chargePeers(TxCache cache, CidInfo cidInfo, boolean pinned) {
+        cache.addCids(pinned ? BigInteger.ONE : BigInteger.ONE.negate());
+        for (int handle : getAllocationHandles(cache, cidInfo)) {
+            chargePeer(cache, handle, cidInfo.getCid(), cidInfo.getSize(), pinned);
+        }
+    }
+
+    // Adds or removes the CID in the index of the peer, and its size in the usage of the peer.
+    private void chargePeer(TxCache cache, int handle, String cid, BigInteger size, boolean pinned) {
+        if (pinned) {
+            if (this.peerCids.add(cache, String.valueOf(handle), cid)) {
+                updateDigest(cache, handle, cid);
+            }
+            PeerAssigned(cache.getPeerId(handle), cid, (size == null) ? BigInteger.ZERO : size);
+        } else {
+            if (this.peerCids.remove(cache, String.valueOf(handle), cid)) {
+                updateDigest(cache, handle, cid);
+            }
+            PeerReleased(cache.getPeerId(handle), cid);
+        }
+
+        if (size == null || size.signum() == 0) {
+            return;
+        }
+        cache.addStoredBytes(pinned ? size : size.negate());
+        BigInteger used = cache.getUsedBytes(handle);
+        // CIDs pinned before the usage was counted are released without having been charged.
+        BigInteger newUsed = pinned ? used.add(size) : used.subtract(size).max(BigInteger.ZERO);
+        cache.setUsedBytes(handle, newUsed);
+        this.capacityHeap.adjust(cache, handle, used.subtract(newUsed));
+    }
+
+    // Adding and removing a CID are the same operation on the XOR digest, so its order does not matter.
+    private void updateDigest(TxCache cache, int handle, String cid) {
+        byte[] hash = Context.hash("sha3-256", cid.getBytes());
+        byte[] digest = cache.read(this.peerDigests, handle);
+        if (digest != null) {
+            for (int i = 0; i < hash.length; i++) {
+                hash[i] ^= digest[i];
+            }
+        }
+        this.peerDigests.set(handle, hash);
+    }
+
+    // Picks a peer which does not hold the CID yet through the allocation strategy, or returns null if there is none.
+    private String pickReplacement(TxCache cache, CidInfo cidInfo, int[] handles) {
+        // Asking for as many peers as the current ones leaves at least one which is not among the survivors.
+        String[] candidates;
+        try {
+            candidates = allocate(cache, getAllocationSettings(cache).getStrategy(),
+                    new PeerSource.StoragePeers(cache, this.peers),
+                    cidInfo.getCid(), cidInfo.getSize(), 1, handles.length, handles.length - 1, null);
+        }
+        catch(Allocator.AllocatorException e) {
+            return null;
+        }
+
+        for (String candidate : candidates) {
+            Integer handle = cache.getHandle(candidate);
+            if (handle == null || indexOf(handles, handle) < 0) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static int indexOf(int[] handles, int handle) {
+        for (int i = 0; i < handles.length; i++) {
+            if (handles[i] == handle) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Returns the handle of each peer with room for the size, or -1 for the others.
+    private int[] handlesWithSpace(TxCache cache, String[] peer_ids, BigInteger size) {
+        if (peer_ids == null) {
+            return null;
+        }
+        int[] handles = new int[peer_ids.length];
+        for (int i = 0; i < peer_ids.length; i++) {
+            Integer handle = cache.getHandle(peer_ids[i]);
+            BigInteger free = (handle == null) ? null : this.capacityHeap.getFree(cache, handle);
+            handles[i] = (free != null && free.compareTo(size) >= 0) ? handle : -1;
+        }
+        return handles;
+    }
+
+    // Returns the position of each peer in the list, or -1 for the peers which are not in it.
+    private int[] indexesOfPeers(TxCache cache, String[] peer_ids) {
+        if (peer_ids == null) {
+            return null;
+        }
+        int[] indexes = new int[peer_ids.length];
+        for (int i = 0; i < peer_ids.length; i++) {
+            indexes[i] = indexOfPeer(cache, peer_ids[i]);
+        }
+        return indexes;
+    }
+
+    private void addPeer(TxCache cache, String peer_id) {
+        this.peerIndexes.set(peer_id, cache.size(this.peers));
+        this.peers.add(peer_id);
+        this.indexedPeers.set(cache.getOrDefault(this.indexedPeers, 0) + 1);
+    }
+
+    private void removeNode(TxCache cache, String peer_id) {
+        Integer indexed = cache.read(this.peerIndexes, peer_id);
+        int index = (indexed != null) ? indexed : scanPeers(cache, peer_id);
+        if (index < 0) {
+            return;
+        }
+
+        int count = cache.getOrDefault(this.indexedPeers, 0);
+        int size = cache.size(this.peers) - 1;
+        boolean ready = count == size + 1;
+        String top = cache.pop(this.peers);
+        if (index < size) {
+            this.peers.set(index, top);
+            if (!ready && cache.read(this.peerIndexes, top) == null) {
+                count++;
+            }
+            this.peerIndexes.set(top, index);
+        }
+        if (indexed != null) {
+            this.peerIndexes.set(peer_id, null);
+            count--;
+        }
+        this.indexedPeers.set(count);
+    }
+
+    private int indexOfPeer(TxCache cache, String peer_id) {
+        Integer index = cache.read(this.peerIndexes, peer_id);
+        return (index != null) ? index : scanPeers(cache, peer_id);
+    }
+
+    private int scanPeers(TxCache cache, String peer_id) {
+        if (isPeerIndexReady(cache)) {
+            return -1;
+        }
+
+        // The index of a contract deployed before migrate_peer_index is not complete yet.
+        int size = cache.size(this.peers);
+        for (int i = 0; i < size; i++) {
+            if (peer_id.equals(cache.read(this.peers, i))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public boolean checkPeerExist(String peer_id) {
+        return indexOfPeer(newTxCache(), peer_id) >= 0;
+    }
+
+    // A node which has sent no heartbeat counts as seen when it was added, and no node is seen before the
+    // liveness window was enabled. Returns Long.MIN_VALUE if the node does not exist.
+    protected long getLastSeen(String peer_id) {
+        Long height = this.lastSeen.get(peer_id);
+        if (height == null) {
+            NodeInfo nodeInfo = this.nodeInfos.get(peer_id);
+            if (nodeInfo == null) {
+                return Long.MIN_VALUE;
+            }
+            height = nodeInfo.getCreated();
+        }
+        return Math.max(height, this.livenessSince.getOrDefault(Long.MIN_VALUE));
+    }
+
+    // The last seen height of a peer in the list, with one read. A node without a heartbeat was added
+    // before add_node recorded one, so before the liveness window was first enabled at since.
+    private long getPeerLastSeen(TxCache cache, String peer_id, long since) {
+        return Math.max(cache.getOrDefault(this.lastSeen, peer_id, since), since);
+    }
+
+    private void recordChange(EventType kind, String key) {
+        this.changes.append(kind.name(), key);
     }
 
     /*
@@ -537,4 +1935,37 @@ public class BfsContents implements BfsContent, BfsContentEvent{
      */
     @EventLog
     public void BFSEvent(String event, String value1, String value2) {}
+
+    @EventLog(indexed=2)
+    public void BFSBatchEvent(String event, String owner, String values) {}
+
+    @EventLog(indexed=2)
+    public void PinAdded(String cid, String owner, BigInteger size, BigInteger expire_at, String group, String allocations) {}
+
+    @EventLog(indexed=2)
+    public void PinUpdated(String cid, String owner, BigInteger expire_at) {}
+
+    @EventLog(indexed=2)
+    public void PinRemoved(String cid, String owner, boolean expired) {}
+
+    @EventLog(indexed=1)
+    public void CidRemoved(String cid, String allocations) {}
+
+    @EventLog(indexed=2)
+    public void PeerAssigned(String peer_id, String cid, BigInteger size) {}
+
+    @EventLog(indexed=2)
+    public void PeerReleased(String peer_id, String cid) {}
+
+    @EventLog(indexed=1)
+    public void NodeAdded(String peer_id, Address owner, String url, String endpoint) {}
+
+    @EventLog(indexed=1)
+    public void NodeUpdated(String peer_id, Address owner, String url, String endpoint) {}
+
+    @EventLog(indexed=1)
+    public void NodeRemoved(String peer_id) {}
+
+    @EventLog(indexed=2)
+    public void GroupUpdated(String group, String owner, BigInteger expire_at) {}
 }
\ No newline at end of file
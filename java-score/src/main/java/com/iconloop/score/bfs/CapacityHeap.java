@@ -0,0 +1,179 @@
+package com.iconloop.score.bfs;
+
+import score.ArrayDB;
+import score.Context;
+import score.DictDB;
+
+import java.math.BigInteger;
+
+/**
+ * Max-heap of peer handles ordered by free space.
+ * Adding, removing and adjusting a peer cost O(log N) storage accesses, and the top K peers are found
+ * by reading O(K) entries, whatever the number of peers. The reads of each call are counted by the TxCache of the call.
+ */
+public class CapacityHeap {
+    private final ArrayDB<Integer> entries;
+    private final DictDB<Integer, Integer> positions;
+    private final DictDB<Integer, BigInteger> free;
+
+    public CapacityHeap(String id) {
+        this.entries = Context.newArrayDB(id + "Entries", Integer.class);
+        this.positions = Context.newDictDB(id + "Positions", Integer.class);
+        this.free = Context.newDictDB(id + "Free", BigInteger.class);
+    }
+
+    public int size(TxCache cache) {
+        return cache.size(this.entries);
+    }
+
+    /**
+     * Returns the free space of the peer, or null if it is not in the heap.
+     */
+    public BigInteger getFree(TxCache cache, int handle) {
+        return cache.read(this.free, handle);
+    }
+
+    public void set(TxCache cache, int handle, BigInteger value) {
+        Integer pos = cache.read(this.positions, handle);
+        if (pos == null) {
+            this.entries.add(handle);
+            this.free.set(handle, value);
+            siftUp(cache, cache.size(this.entries) - 1, handle, value);
+            return;
+        }
+
+        BigInteger old = cache.read(this.free, handle);
+        this.free.set(handle, value);
+        if (value.compareTo(old) > 0) {
+            siftUp(cache, pos, handle, value);
+        } else if (value.compareTo(old) < 0) {
+            siftDown(cache, pos, handle, value);
+        }
+    }
+
+    /**
+     * Adds delta to the free space of the peer, if it is in the heap.
+     */
+    public void adjust(TxCache cache, int handle, BigInteger delta) {
+        BigInteger old = cache.read(this.free, handle);
+        if (old != null) {
+            set(cache, handle, old.add(delta));
+        }
+    }
+
+    public void remove(TxCache cache, int handle) {
+        Integer pos = cache.read(this.positions, handle);
+        if (pos == null) {
+            return;
+        }
+        this.positions.set(handle, null);
+        this.free.set(handle, null);
+
+        int last = cache.pop(this.entries);
+        if (pos < cache.size(this.entries)) {
+            BigInteger value = cache.read(this.free, last);
+            siftUp(cache, pos, last, value);
+            Integer moved = cache.read(this.positions, last);
+            if (moved == pos) {
+                siftDown(cache, pos, last, value);
+            }
+        }
+    }
+
+    /**
+     * Returns up to count peers with at least minFree space, with the most free space first.
+     */
+    public int[] top(TxCache cache, int count, BigInteger minFree) {
+        int size = cache.size(this.entries);
+        count = Math.min(count, size);
+        // Positions which can hold the next largest value: the children of the positions taken so far.
+        int[] frontier = new int[2 * count + 1];
+        int[] frontierHandles = new int[frontier.length];
+        BigInteger[] frontierValues = new BigInteger[frontier.length];
+        int frontierSize = 0;
+        int[] result = new int[count];
+        int resultSize = 0;
+
+        if (size > 0) {
+            frontierSize = push(cache, frontier, frontierHandles, frontierValues, frontierSize, 0);
+        }
+        while (resultSize < count && frontierSize > 0) {
+            int best = 0;
+            for (int i = 1; i < frontierSize; i++) {
+                if (frontierValues[i].compareTo(frontierValues[best]) > 0) {
+                    best = i;
+                }
+            }
+            if (frontierValues[best].compareTo(minFree) < 0) {
+                break;
+            }
+            int pos = frontier[best];
+            result[resultSize++] = frontierHandles[best];
+
+            frontierSize--;
+            frontier[best] = frontier[frontierSize];
+            frontierHandles[best] = frontierHandles[frontierSize];
+            frontierValues[best] = frontierValues[frontierSize];
+            if (2 * pos + 1 < size) {
+                frontierSize = push(cache, frontier, frontierHandles, frontierValues, frontierSize, 2 * pos + 1);
+            }
+            if (2 * pos + 2 < size) {
+                frontierSize = push(cache, frontier, frontierHandles, frontierValues, frontierSize, 2 * pos + 2);
+            }
+        }
+
+        int[] top = new int[resultSize];
+        System.arraycopy(result, 0, top, 0, resultSize);
+        return top;
+    }
+
+    private int push(TxCache cache, int[] frontier, int[] handles, BigInteger[] values, int frontierSize, int pos) {
+        int handle = cache.read(this.entries, pos);
+        frontier[frontierSize] = pos;
+        handles[frontierSize] = handle;
+        values[frontierSize] = cache.read(this.free, handle);
+        return frontierSize + 1;
+    }
+
+    private void siftUp(TxCache cache, int pos, int handle, BigInteger value) {
+        while (pos > 0) {
+            int parent = (pos - 1) / 2;
+            int parentHandle = cache.read(this.entries, parent);
+            if (cache.read(this.free, parentHandle).compareTo(value) >= 0) {
+                break;
+            }
+            place(pos, parentHandle);
+            pos = parent;
+        }
+        place(pos, handle);
+    }
+
+    private void siftDown(TxCache cache, int pos, int handle, BigInteger value) {
+        int size = cache.size(this.entries);
+        while (2 * pos + 1 < size) {
+            int child = 2 * pos + 1;
+            int childHandle = cache.read(this.entries, child);
+            BigInteger childValue = cache.read(this.free, childHandle);
+            if (child + 1 < size) {
+                int rightHandle = cache.read(this.entries, child + 1);
+                BigInteger rightValue = cache.read(this.free, rightHandle);
+                if (rightValue.compareTo(childValue) > 0) {
+                    child++;
+                    childHandle = rightHandle;
+                    childValue = rightValue;
+                }
+            }
+            if (value.compareTo(childValue) >= 0) {
+                break;
+            }
+            place(pos, childHandle);
+            pos = child;
+        }
+        place(pos, handle);
+    }
+
+    private void place(int pos, int handle) {
+        this.entries.set(pos, handle);
+        this.positions.set(handle, pos);
+    }
+}
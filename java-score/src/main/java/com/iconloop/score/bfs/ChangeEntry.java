@@ -0,0 +1,54 @@
+package com.iconloop.score.bfs;
+
+import score.ObjectReader;
+import score.ObjectWriter;
+
+import java.util.Map;
+
+
+public class ChangeEntry {
+    private final String kind;
+    private final String key;
+    private final long height;
+
+    public ChangeEntry(String kind, String key, long height) {
+        this.kind = kind;
+        this.key = key;
+        this.height = height;
+    }
+
+    public String getKind() {
+        return kind;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public static void writeObject(ObjectWriter w, ChangeEntry e) {
+        w.writeListOfNullable(
+                e.kind,
+                e.key,
+                e.height
+        );
+    }
+
+    public static ChangeEntry readObject(ObjectReader r) {
+        r.beginList();
+        ChangeEntry e = new ChangeEntry(r.readString(), r.readString(), r.readLong());
+        r.end();
+        return e;
+    }
+
+    public Map<String, Object> toMap() {
+        return Map.ofEntries(
+                Map.entry("kind", this.kind),
+                Map.entry("key", this.key),
+                Map.entry("height", this.height)
+        );
+    }
+}
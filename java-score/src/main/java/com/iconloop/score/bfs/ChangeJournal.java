@@ -0,0 +1,120 @@
+package com.iconloop.score.bfs;
+
+import score.Context;
+import score.DictDB;
+import score.VarDB;
+
+/**
+ * Append-only journal of the changes of the contract, numbered from 0 in the order they happen.
+ * Entries are ordered by height, so the first change after a height is found by a binary search over the
+ * retained entries. Entries older than the retention in blocks are removed from the head, a few at each
+ * append and more by compact(); a retention of 0 keeps them all.
+ */
+public class ChangeJournal {
+    public static final long DEFAULT_RETENTION = 1_296_000;
+    // Entries removed by each append, so that the journal shrinks faster than it grows once it is full.
+    private static final int COMPACT_ON_APPEND = 2;
+
+    private final DictDB<Long, ChangeEntry> entries;
+    private final VarDB<Long> head;
+    private final VarDB<Long> tail;
+    private final VarDB<Long> retention;
+    private final VarDB<Long> compactedHeight;
+
+    public ChangeJournal(String id) {
+        this.entries = Context.newDictDB(id, ChangeEntry.class);
+        this.head = Context.newVarDB(id + "Head", Long.class);
+        this.tail = Context.newVarDB(id + "Tail", Long.class);
+        this.retention = Context.newVarDB(id + "Retention", Long.class);
+        this.compactedHeight = Context.newVarDB(id + "CompactedHeight", Long.class);
+    }
+
+    /**
+     * Returns the number of the first retained entry.
+     */
+    public long getHead() {
+        return this.head.getOrDefault(0L);
+    }
+
+    /**
+     * Returns the number of the next entry to be appended.
+     */
+    public long getTail() {
+        return this.tail.getOrDefault(0L);
+    }
+
+    /**
+     * Returns the height of the last removed entry, or -1 if none has been removed.
+     */
+    public long getCompactedHeight() {
+        return this.compactedHeight.getOrDefault(-1L);
+    }
+
+    public long getRetention() {
+        return this.retention.getOrDefault(DEFAULT_RETENTION);
+    }
+
+    public void setRetention(long retention) {
+        this.retention.set(retention);
+    }
+
+    public ChangeEntry get(long seq) {
+        return this.entries.get(seq);
+    }
+
+    public void append(String kind, String key) {
+        long seq = getTail();
+        this.entries.set(seq, new ChangeEntry(kind, key, Context.getBlockHeight()));
+        this.tail.set(seq + 1);
+        compact(COMPACT_ON_APPEND);
+    }
+
+    /**
+     * Returns the number of the first retained entry made after the height.
+     */
+    public long findAfter(long height) {
+        long low = getHead();
+        long high = getTail();
+        while (low < high) {
+            long mid = low + (high - low) / 2;
+            if (this.entries.get(mid).getHeight() > height) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Removes up to maxItems entries older than the retention, and returns the number of removed entries.
+     */
+    public int compact(int maxItems) {
+        long retention = getRetention();
+        if (retention == 0) {
+            return 0;
+        }
+
+        long limit = Context.getBlockHeight() - retention;
+        long first = getHead();
+        long last = getTail();
+        long removedHeight = -1;
+        int count = 0;
+        while (count < maxItems && first < last) {
+            ChangeEntry entry = this.entries.get(first);
+            if (entry.getHeight() >= limit) {
+                break;
+            }
+            this.entries.set(first, null);
+            removedHeight = entry.getHeight();
+            first++;
+            count++;
+        }
+
+        if (count > 0) {
+            this.head.set(first);
+            this.compactedHeight.set(removedHeight);
+        }
+        return count;
+    }
+}
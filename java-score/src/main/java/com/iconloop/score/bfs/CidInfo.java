@@ -1,18 +1,26 @@
 package com.iconloop.score.bfs;
 
+import score.Context;
 import score.ObjectReader;
 import score.ObjectWriter;
+import scorex.util.ArrayList;
 
 import java.math.BigInteger;
+import java.util.List;
 import java.util.Map;
 
 
 public class CidInfo {
+    private static final int ALLOCATIONS_AS_LIST = 1;
+    private static final int ALLOCATIONS_AS_HANDLES = 2;
+
     private final String cid;
     private final BigInteger size;
     private final BigInteger replicationMin;
     private final BigInteger replicationMax;
     private String[] userAllocations;
+    // Interned peers of the allocations. When set, they take the place of userAllocations in storage.
+    private int[] allocationHandles;
     private final BigInteger shardSize;
     private Integer refCnt;
 
@@ -22,6 +30,7 @@ public class CidInfo {
         this.replicationMin = builder.replicationMin;
         this.replicationMax = builder.replicationMax;
         this.userAllocations = builder.userAllocations;
+        this.allocationHandles = builder.allocationHandles;
         this.shardSize = (builder.shardSize == null) ? BigInteger.ZERO : builder.shardSize;
         this.refCnt = builder.refCnt == null ? 0 : builder.refCnt;
     }
@@ -40,6 +49,15 @@ public class CidInfo {
 
     public void setUserReallocation(String[] allocations) {
         this.userAllocations = allocations;
+        this.allocationHandles = null;
+    }
+
+    public int[] getAllocationHandles() {
+        return allocationHandles;
+    }
+
+    public void setAllocationHandles(int[] handles) {
+        this.allocationHandles = handles;
     }
 
     public BigInteger getShard_size() {
@@ -64,40 +82,99 @@ public class CidInfo {
     }
 
     public static void writeObject(ObjectWriter w, CidInfo c) {
-        String userAllocations = Helper.StringListToJsonString(c.userAllocations);
-        w.writeListOfNullable(
-                c.cid,
-                c.size,
-                c.replicationMin,
-                c.replicationMax,
-                userAllocations,
-                c.shardSize,
-                c.refCnt
-        );
+        w.beginList(9);
+        w.write(c.cid);
+        w.writeNullable(c.size);
+        w.writeNullable(c.replicationMin);
+        w.writeNullable(c.replicationMax);
+        // Slot of the allocations in the JSON layout, kept so that the fields after it stay in place.
+        w.write("");
+        w.writeNullable(c.shardSize);
+        w.writeNullable(c.refCnt);
+        if (c.allocationHandles != null) {
+            w.write(ALLOCATIONS_AS_HANDLES);
+            w.beginList(c.allocationHandles.length);
+            for (int handle : c.allocationHandles) {
+                w.write(handle);
+            }
+        } else {
+            String[] userAllocations = (c.userAllocations == null) ? new String[0] : c.userAllocations;
+            w.write(ALLOCATIONS_AS_LIST);
+            w.beginList(userAllocations.length);
+            for (String allocation : userAllocations) {
+                w.write(allocation);
+            }
+        }
+        w.end();
+        w.end();
     }
 
     public static CidInfo readObject(ObjectReader r) {
         r.beginList();
-        CidInfo t = new Builder()
+        Builder builder = new Builder()
                 .cid(r.readString())
                 .size(r.readBigInteger())
                 .replicationMin(r.readBigInteger())
-                .replicationMax(r.readBigInteger())
-                .userAllocations(Helper.JsonStringToStringList("userAllocations", r.readNullable(String.class)))
-                .shardSize(r.readBigInteger())
-                .refCnt(r.readInt())
-                .build();
+                .replicationMax(r.readBigInteger());
+        String jsonAllocations = r.readNullable(String.class);
+        builder.shardSize(r.readBigInteger())
+                .refCnt(r.readInt());
+
+        if (r.hasNext()) {
+            int format = r.readInt();
+            Context.require(format == ALLOCATIONS_AS_LIST || format == ALLOCATIONS_AS_HANDLES,
+                    "Unknown allocation format.");
+            if (format == ALLOCATIONS_AS_HANDLES) {
+                builder.allocationHandles(readHandles(r));
+            } else {
+                builder.userAllocations(readStrings(r));
+            }
+        } else {
+            // Records written before the list layout keep the allocations as a JSON fragment.
+            builder.userAllocations(Helper.JsonStringToStringList("userAllocations", jsonAllocations));
+        }
+        r.end();
+        return builder.build();
+    }
+
+    private static String[] readStrings(ObjectReader r) {
+        List<String> allocations = new ArrayList<>();
+        r.beginList();
+        while (r.hasNext()) {
+            allocations.add(r.readString());
+        }
+        r.end();
+        String[] userAllocations = new String[allocations.size()];
+        for (int i = 0; i < userAllocations.length; i++) {
+            userAllocations[i] = allocations.get(i);
+        }
+        return userAllocations;
+    }
+
+    private static int[] readHandles(ObjectReader r) {
+        List<Integer> handles = new ArrayList<>();
+        r.beginList();
+        while (r.hasNext()) {
+            handles.add(r.readInt());
+        }
         r.end();
-        return t;
+        int[] allocationHandles = new int[handles.size()];
+        for (int i = 0; i < allocationHandles.length; i++) {
+            allocationHandles[i] = handles.get(i);
+        }
+        return allocationHandles;
     }
 
-    public Map<String, Object> toMap() {
+    /**
+     * Returns the fields exposed to the callers, with the allocations already resolved to peer IDs.
+     */
+    public Map<String, Object> toMap(String[] allocations) {
         return Map.ofEntries(
                 Map.entry("cid", this.cid),
                 Map.entry("size", this.size),
                 Map.entry("replication_min", this.replicationMin),
                 Map.entry("replication_max", this.replicationMax),
-                Map.entry("user_allocations", this.userAllocations),
+                Map.entry("user_allocations", allocations),
                 Map.entry("shard_size", this.shardSize)
         );
     }
@@ -108,6 +185,7 @@ public class CidInfo {
         private BigInteger replicationMin;
         private BigInteger replicationMax;
         private String[] userAllocations;
+        private int[] allocationHandles;
         private BigInteger shardSize;
         private Integer refCnt;
 
@@ -136,6 +214,11 @@ public class CidInfo {
             return this;
         }
 
+        public Builder allocationHandles(int[] allocationHandles) {
+            this.allocationHandles = allocationHandles;
+            return this;
+        }
+
         public Builder shardSize(BigInteger shardSize) {
             this.shardSize = shardSize;
             return this;
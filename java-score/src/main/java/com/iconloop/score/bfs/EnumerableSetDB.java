@@ -0,0 +1,63 @@
+package com.iconloop.score.bfs;
+
+import score.ArrayDB;
+import score.BranchDB;
+import score.Context;
+import score.DictDB;
+
+/**
+ * Sets of strings grouped by key, which can be enumerated by index.
+ * Add, remove and contains cost a constant number of storage accesses; removal moves the last entry
+ * into the removed slot, so the order of entries is not preserved.
+ * The reads of each call are counted by the TxCache of the call.
+ */
+public class EnumerableSetDB {
+    private final BranchDB<String, ArrayDB<String>> entries;
+    private final BranchDB<String, DictDB<String, Integer>> indexes;
+
+    public EnumerableSetDB(String id) {
+        this.entries = Context.newBranchDB(id + "Entries", String.class);
+        this.indexes = Context.newBranchDB(id + "Indexes", Integer.class);
+    }
+
+    public int size(TxCache cache, String key) {
+        return cache.size(this.entries.at(key));
+    }
+
+    public String get(TxCache cache, String key, int index) {
+        return cache.read(this.entries.at(key), index);
+    }
+
+    public boolean contains(TxCache cache, String key, String value) {
+        return cache.read(this.indexes.at(key), value) != null;
+    }
+
+    public boolean add(TxCache cache, String key, String value) {
+        DictDB<String, Integer> index = this.indexes.at(key);
+        if (cache.read(index, value) != null) {
+            return false;
+        }
+
+        ArrayDB<String> list = this.entries.at(key);
+        index.set(value, cache.size(list));
+        list.add(value);
+        return true;
+    }
+
+    public boolean remove(TxCache cache, String key, String value) {
+        DictDB<String, Integer> index = this.indexes.at(key);
+        Integer position = cache.read(index, value);
+        if (position == null) {
+            return false;
+        }
+
+        ArrayDB<String> list = this.entries.at(key);
+        String top = cache.pop(list);
+        if (position < cache.size(list)) {
+            list.set(position, top);
+            index.set(top, position);
+        }
+        index.set(value, null);
+        return true;
+    }
+}
@@ -23,6 +23,10 @@ public class Helper {
         return builder.toString();
     }
 
+    public static String StringListToJsonArray(String[] list) {
+        return "[" + StringListToJsonString(list) + "]";
+    }
+
     public static String[] JsonStringToStringList(String keyName, String jsonString) {
         String json_str = "{\"" + keyName + "\":[" + jsonString + "]}";
         JsonValue jsonValue = Json.parse(json_str);
@@ -38,6 +42,19 @@ public class Helper {
         return stringList;
     }
 
+    public static String PinKey(String owner, String cid) {
+        // Neither a DID nor a wallet address contains '/'
+        return owner + "/" + cid;
+    }
+
+    public static String PinKeyOwner(String pinKey) {
+        return pinKey.substring(0, pinKey.indexOf('/'));
+    }
+
+    public static String PinKeyCid(String pinKey) {
+        return pinKey.substring(pinKey.indexOf('/') + 1);
+    }
+
     public static boolean ArraysEqual(String[] arr1, String[] arr2) {
         // Check if the arrays have the same length
         if (arr1.length != arr2.length) {
@@ -4,6 +4,8 @@ import score.Address;
 import score.ObjectReader;
 import score.ObjectWriter;
 
+import java.math.BigInteger;
+
 
 public class NodeInfo {
     private final String peerId;
@@ -12,6 +14,8 @@ public class NodeInfo {
     private String endpoint;
     private final long created;
     private Address owner;
+    // Declared storage capacity in bytes, null if not declared.
+    private BigInteger capacity;
 
     public NodeInfo(Builder builder) {
         this.peerId = builder.peerId;
@@ -20,6 +24,7 @@ public class NodeInfo {
         this.endpoint = (builder.endpoint == null) ? "" : builder.endpoint;
         this.created = builder.created;
         this.owner = builder.owner;
+        this.capacity = builder.capacity;
     }
 
     public String getPeer_id() {
@@ -46,14 +51,20 @@ public class NodeInfo {
         return owner;
     }
 
+    public BigInteger getCapacity() {
+        return capacity;
+    }
+
     public void update(String name,
                        String url,
                        String endpoint,
-                       Address owner) {
+                       Address owner,
+                       BigInteger capacity) {
         this.name = (name == null) ? this.name : name;
         this.url = (url == null) ? this.url : url;
         this.endpoint = (endpoint == null) ? this.endpoint : endpoint;
         this.owner = (owner == null) ? this.owner : owner;
+        this.capacity = (capacity == null) ? this.capacity : capacity;
     }
 
 
@@ -68,19 +79,25 @@ public class NodeInfo {
                 n.name,
                 n.endpoint,
                 n.created,
-                n.owner
+                n.owner,
+                n.capacity
         );
     }
 
     public static NodeInfo readObject(ObjectReader r) {
         r.beginList();
-        NodeInfo t = new Builder()
+        Builder builder = new Builder()
                 .peerId(r.readString())
                 .url(r.readString())
                 .name(r.readNullable(String.class))
                 .endpoint(r.readNullable(String.class))
                 .created(r.readLong())
-                .owner(r.readAddress()).build();
+                .owner(r.readAddress());
+        // Nodes added before the capacity was introduced have no such field.
+        if (r.hasNext()) {
+            builder.capacity(r.readNullable(BigInteger.class));
+        }
+        NodeInfo t = builder.build();
         r.end();
         return t;
     }
@@ -94,6 +111,7 @@ public class NodeInfo {
                 ", endpoint='" + endpoint + '\'' +
                 ", created='" + created + '\'' +
                 ", owner=" + owner +
+                ", capacity=" + capacity +
                 '}';
     }
 
@@ -104,6 +122,7 @@ public class NodeInfo {
         private String endpoint;
         private long created;
         private Address owner;
+        private BigInteger capacity;
 
         public Builder peerId(String peerId) {
             this.peerId = peerId;
@@ -135,6 +154,11 @@ public class NodeInfo {
             return this;
         }
 
+        public Builder capacity(BigInteger capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
         public NodeInfo build() {
             return new NodeInfo(this);
         }
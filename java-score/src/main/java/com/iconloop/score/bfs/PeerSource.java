@@ -0,0 +1,54 @@
+package com.iconloop.score.bfs;
+
+import score.ArrayDB;
+
+/**
+ * Read access to the list of peers, so that the Allocator only loads the entries it visits.
+ */
+public interface PeerSource {
+    int size();
+
+    String get(int index);
+
+    class ArrayPeers implements PeerSource {
+        private final String[] peers;
+
+        public ArrayPeers(String[] peers) {
+            this.peers = peers;
+        }
+
+        @Override
+        public int size() {
+            return this.peers.length;
+        }
+
+        @Override
+        public String get(int index) {
+            return this.peers[index];
+        }
+    }
+
+    // The size is read once. Nothing changes the list during an allocation, the stale peers are only
+    // dropped by sweep_stale_nodes. Every read is counted by the TxCache of the call.
+    class StoragePeers implements PeerSource {
+        private final TxCache cache;
+        private final ArrayDB<String> peers;
+        private final int size;
+
+        public StoragePeers(TxCache cache, ArrayDB<String> peers) {
+            this.cache = cache;
+            this.peers = peers;
+            this.size = cache.size(peers);
+        }
+
+        @Override
+        public int size() {
+            return this.size;
+        }
+
+        @Override
+        public String get(int index) {
+            return this.cache.read(this.peers, index);
+        }
+    }
+}
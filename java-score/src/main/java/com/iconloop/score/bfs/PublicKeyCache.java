@@ -0,0 +1,63 @@
+package com.iconloop.score.bfs;
+
+import score.Address;
+import score.Context;
+import score.DictDB;
+import score.VarDB;
+
+/**
+ * Public keys fetched from the DID score, keyed by did#kid.
+ * An entry is used only while it was fetched from the current DID score and is younger than the TTL in blocks.
+ * A TTL of 0 disables the cache.
+ *
+ * A cache hit does not ask the DID score again, so a revoked key keeps verifying signatures until its entry
+ * is older than the TTL or is dropped by invalidate. The TTL is therefore the longest revocation window.
+ */
+public class PublicKeyCache {
+    // 150 blocks, about five minutes with 2 second blocks
+    public static final long DEFAULT_TTL = 150;
+
+    private final DictDB<String, PublicKeyInfo> keys;
+    private final VarDB<Long> ttl;
+
+    public PublicKeyCache(String id) {
+        this.keys = Context.newDictDB(id, PublicKeyInfo.class);
+        this.ttl = Context.newVarDB(id + "Ttl", Long.class);
+    }
+
+    public long getTtl() {
+        return this.ttl.getOrDefault(DEFAULT_TTL);
+    }
+
+    public void setTtl(long ttl) {
+        this.ttl.set(ttl);
+    }
+
+    public byte[] get(Address didScore, String did, String kid) {
+        long ttl = getTtl();
+        if (ttl == 0) {
+            return null;
+        }
+        PublicKeyInfo info = this.keys.get(key(did, kid));
+        if (info == null || !info.getDidScore().equals(didScore)
+                || Context.getBlockHeight() - info.getCachedAt() >= ttl) {
+            return null;
+        }
+        return info.getPublicKey();
+    }
+
+    public void put(Address didScore, String did, String kid, byte[] publicKey) {
+        if (getTtl() == 0) {
+            return;
+        }
+        this.keys.set(key(did, kid), new PublicKeyInfo(publicKey, didScore, Context.getBlockHeight()));
+    }
+
+    public void invalidate(String did, String kid) {
+        this.keys.set(key(did, kid), null);
+    }
+
+    private static String key(String did, String kid) {
+        return did + "#" + kid;
+    }
+}
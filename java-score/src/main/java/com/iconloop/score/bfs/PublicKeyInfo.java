@@ -0,0 +1,45 @@
+package com.iconloop.score.bfs;
+
+import score.Address;
+import score.ObjectReader;
+import score.ObjectWriter;
+
+
+public class PublicKeyInfo {
+    private final byte[] publicKey;
+    private final Address didScore;
+    private final long cachedAt;
+
+    public PublicKeyInfo(byte[] publicKey, Address didScore, long cachedAt) {
+        this.publicKey = publicKey;
+        this.didScore = didScore;
+        this.cachedAt = cachedAt;
+    }
+
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    public Address getDidScore() {
+        return didScore;
+    }
+
+    public long getCachedAt() {
+        return cachedAt;
+    }
+
+    public static void writeObject(ObjectWriter w, PublicKeyInfo i) {
+        w.writeListOfNullable(
+                i.publicKey,
+                i.didScore,
+                i.cachedAt
+        );
+    }
+
+    public static PublicKeyInfo readObject(ObjectReader r) {
+        r.beginList();
+        PublicKeyInfo i = new PublicKeyInfo(r.readByteArray(), r.readAddress(), r.readLong());
+        r.end();
+        return i;
+    }
+}
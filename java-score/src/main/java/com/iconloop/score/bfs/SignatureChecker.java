@@ -7,18 +7,37 @@ import score.Address;
 import score.Context;
 
 public class SignatureChecker {
+    private final PublicKeyCache publicKeyCache;
     private String ownerId;
     private JsonObject payload;
 
+    public SignatureChecker() {
+        this(null);
+    }
+
+    public SignatureChecker(PublicKeyCache publicKeyCache) {
+        this.publicKeyCache = publicKeyCache;
+    }
+
     public boolean verifySig(Address didScore, String ownerSig) {
         var jwt = new Jwt(ownerSig);
         String[] tokens = jwt.parseHeader();
         ownerId = tokens[0];
         String kid = tokens[1];
 
+        byte[] cachedKey = (publicKeyCache != null) ? publicKeyCache.get(didScore, ownerId, kid) : null;
+        if (cachedKey != null && jwt.verify(cachedKey)) {
+            this.payload = jwt.getPayload();
+            return true;
+        }
+
+        // Not cached, or the key was rotated since it was cached.
         byte[] pubKey = Context.call(byte[].class, didScore, "getPublicKey", ownerId, kid);
         Context.require(pubKey != null, "cannot find public key for " + ownerId + "#" + kid);
         if (jwt.verify(pubKey)) {
+            if (publicKeyCache != null) {
+                publicKeyCache.put(didScore, ownerId, kid, pubKey);
+            }
             this.payload = jwt.getPayload();
             return true;
         }
@@ -0,0 +1,47 @@
+package com.iconloop.score.bfs;
+
+import score.ObjectReader;
+import score.ObjectWriter;
+
+
+/**
+ * An unpinned pin waiting for the grace window to pass, and the height it was unpinned at.
+ */
+public class Tombstone {
+    private final String owner;
+    private final String cid;
+    private final long height;
+
+    public Tombstone(String owner, String cid, long height) {
+        this.owner = owner;
+        this.cid = cid;
+        this.height = height;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public String getCid() {
+        return cid;
+    }
+
+    public long getHeight() {
+        return height;
+    }
+
+    public static void writeObject(ObjectWriter w, Tombstone t) {
+        w.writeListOfNullable(
+                t.owner,
+                t.cid,
+                t.height
+        );
+    }
+
+    public static Tombstone readObject(ObjectReader r) {
+        r.beginList();
+        Tombstone t = new Tombstone(r.readString(), r.readString(), r.readLong());
+        r.end();
+        return t;
+    }
+}
@@ -0,0 +1,354 @@
+package com.iconloop.score.bfs;
+
+import score.ArrayDB;
+import score.BranchDB;
+import score.DictDB;
+import score.VarDB;
+import scorex.util.HashMap;
+
+import java.math.BigInteger;
+import java.util.Map;
+
+/**
+ * Records read by one external call, so that each of them is read from storage at most once per call.
+ * Writes go to storage right away and replace the memoized value, so later reads in the same call see them.
+ * A new cache must be created for each call: the fields of the contract itself are kept across transactions.
+ * <p>
+ * The usage counters are the exception, as every pin of a batch changes the same ones: they are added up here
+ * and written once by flushUsage, which every call changing them must end with.
+ * <p>
+ * The entries of the indexes, such as the sets of pins and the capacity heap, are read through the read and size
+ * methods, which do not memoize them but count them, so that getReads covers the indexes and cursors as well as
+ * the records.
+ * The memos are created on first use, so a call which only counts its reads pays for the cache itself only.
+ */
+public class TxCache {
+    private final BranchDB<String, DictDB<String, PinInfo>> pinInfos;
+    private final DictDB<String, CidInfo> cidInfos;
+    private final DictDB<String, NodeInfo> nodeInfos;
+    private final BranchDB<String, DictDB<String, GroupInfo>> groupInfos;
+    private final DictDB<String, UsageInfo> ownerUsage;
+    private final VarDB<UsageInfo> totalUsage;
+    private final DictDB<String, BigInteger> ownerQuotas;
+    private final VarDB<BigInteger> cidCount;
+    private final VarDB<BigInteger> storedBytes;
+    private final DictDB<String, Integer> peerHandles;
+    private final DictDB<Integer, String> handlePeers;
+    private final DictDB<Integer, BigInteger> usedBytes;
+
+    // Absent records are memoized as null values too.
+    private Map<String, PinInfo> pins;
+    private Map<String, CidInfo> cids;
+    private Map<String, NodeInfo> nodes;
+    private Map<String, GroupInfo> groups;
+    // Every usage read through the cache is changed, so all of them are written by flushUsage.
+    private Map<String, UsageInfo> usages;
+    private Map<String, BigInteger> quotas;
+    private Map<String, Integer> handles;
+    private Map<Integer, String> peerIds;
+    private Map<Integer, BigInteger> used;
+    private UsageInfo total;
+    private BigInteger cidTotal;
+    private BigInteger storedTotal;
+    private AllocationSettings settings;
+    private int reads;
+
+    public TxCache(BranchDB<String, DictDB<String, PinInfo>> pinInfos,
+                   DictDB<String, CidInfo> cidInfos,
+                   DictDB<String, NodeInfo> nodeInfos,
+                   BranchDB<String, DictDB<String, GroupInfo>> groupInfos,
+                   DictDB<String, UsageInfo> ownerUsage,
+                   VarDB<UsageInfo> totalUsage,
+                   DictDB<String, BigInteger> ownerQuotas,
+                   VarDB<BigInteger> cidCount,
+                   VarDB<BigInteger> storedBytes,
+                   DictDB<String, Integer> peerHandles,
+                   DictDB<Integer, String> handlePeers,
+                   DictDB<Integer, BigInteger> usedBytes) {
+        this.pinInfos = pinInfos;
+        this.cidInfos = cidInfos;
+        this.nodeInfos = nodeInfos;
+        this.groupInfos = groupInfos;
+        this.ownerUsage = ownerUsage;
+        this.totalUsage = totalUsage;
+        this.ownerQuotas = ownerQuotas;
+        this.cidCount = cidCount;
+        this.storedBytes = storedBytes;
+        this.peerHandles = peerHandles;
+        this.handlePeers = handlePeers;
+        this.usedBytes = usedBytes;
+    }
+
+    public PinInfo getPin(String owner, String cid) {
+        if (this.pins == null) {
+            this.pins = new HashMap<>();
+        }
+        String key = Helper.PinKey(owner, cid);
+        if (!this.pins.containsKey(key)) {
+            this.reads++;
+            this.pins.put(key, this.pinInfos.at(owner).get(cid));
+        }
+        return this.pins.get(key);
+    }
+
+    public void setPin(String owner, String cid, PinInfo pinInfo) {
+        if (this.pins == null) {
+            this.pins = new HashMap<>();
+        }
+        this.pinInfos.at(owner).set(cid, pinInfo);
+        this.pins.put(Helper.PinKey(owner, cid), pinInfo);
+    }
+
+    public CidInfo getCid(String cid) {
+        if (this.cids == null) {
+            this.cids = new HashMap<>();
+        }
+        if (!this.cids.containsKey(cid)) {
+            this.reads++;
+            this.cids.put(cid, this.cidInfos.get(cid));
+        }
+        return this.cids.get(cid);
+    }
+
+    public void setCid(String cid, CidInfo cidInfo) {
+        if (this.cids == null) {
+            this.cids = new HashMap<>();
+        }
+        this.cidInfos.set(cid, cidInfo);
+        this.cids.put(cid, cidInfo);
+    }
+
+    public NodeInfo getNode(String peer_id) {
+        if (this.nodes == null) {
+            this.nodes = new HashMap<>();
+        }
+        if (!this.nodes.containsKey(peer_id)) {
+            this.reads++;
+            this.nodes.put(peer_id, this.nodeInfos.get(peer_id));
+        }
+        return this.nodes.get(peer_id);
+    }
+
+    public void setNode(String peer_id, NodeInfo nodeInfo) {
+        if (this.nodes == null) {
+            this.nodes = new HashMap<>();
+        }
+        this.nodeInfos.set(peer_id, nodeInfo);
+        this.nodes.put(peer_id, nodeInfo);
+    }
+
+    public GroupInfo getGroup(String owner, String group) {
+        if (group == null || group.isEmpty()) {
+            // A pin without a group
+            return null;
+        }
+        if (this.groups == null) {
+            this.groups = new HashMap<>();
+        }
+        String key = Helper.PinKey(owner, group);
+        if (!this.groups.containsKey(key)) {
+            this.reads++;
+            this.groups.put(key, this.groupInfos.at(owner).get(group));
+        }
+        return this.groups.get(key);
+    }
+
+    public void setGroup(String owner, String group, GroupInfo groupInfo) {
+        if (this.groups == null) {
+            this.groups = new HashMap<>();
+        }
+        this.groupInfos.at(owner).set(group, groupInfo);
+        this.groups.put(Helper.PinKey(owner, group), groupInfo);
+    }
+
+    /**
+     * Returns the usage of the owner, to be changed in place.
+     */
+    public UsageInfo getUsage(String owner) {
+        if (this.usages == null) {
+            this.usages = new HashMap<>();
+        }
+        if (!this.usages.containsKey(owner)) {
+            this.reads++;
+            this.usages.put(owner, this.ownerUsage.getOrDefault(owner, new UsageInfo(0, BigInteger.ZERO)));
+        }
+        return this.usages.get(owner);
+    }
+
+    public BigInteger getQuota(String owner) {
+        if (this.quotas == null) {
+            this.quotas = new HashMap<>();
+        }
+        if (!this.quotas.containsKey(owner)) {
+            this.reads++;
+            this.quotas.put(owner, this.ownerQuotas.get(owner));
+        }
+        return this.quotas.get(owner);
+    }
+
+    /**
+     * Returns the usage of all the owners, to be changed in place.
+     */
+    public UsageInfo getTotalUsage() {
+        if (this.total == null) {
+            this.reads++;
+            this.total = this.totalUsage.getOrDefault(new UsageInfo(0, BigInteger.ZERO));
+        }
+        return this.total;
+    }
+
+    // The counters stop at 0 for the CIDs pinned before they were counted.
+    public void addCids(BigInteger delta) {
+        if (this.cidTotal == null) {
+            this.reads++;
+            this.cidTotal = this.cidCount.getOrDefault(BigInteger.ZERO);
+        }
+        this.cidTotal = this.cidTotal.add(delta).max(BigInteger.ZERO);
+    }
+
+    public void addStoredBytes(BigInteger delta) {
+        if (this.storedTotal == null) {
+            this.reads++;
+            this.storedTotal = this.storedBytes.getOrDefault(BigInteger.ZERO);
+        }
+        this.storedTotal = this.storedTotal.add(delta).max(BigInteger.ZERO);
+    }
+
+    /**
+     * Writes the usage counters changed by the call.
+     */
+    public void flushUsage() {
+        if (this.usages != null) {
+            for (Map.Entry<String, UsageInfo> entry : this.usages.entrySet()) {
+                this.ownerUsage.set(entry.getKey(), entry.getValue());
+            }
+            this.usages.clear();
+        }
+        if (this.total != null) {
+            this.totalUsage.set(this.total);
+            this.total = null;
+        }
+        if (this.cidTotal != null) {
+            this.cidCount.set(this.cidTotal);
+            this.cidTotal = null;
+        }
+        if (this.storedTotal != null) {
+            this.storedBytes.set(this.storedTotal);
+            this.storedTotal = null;
+        }
+    }
+
+    /**
+     * Returns the handle of the peer, or null if it has none.
+     */
+    public Integer getHandle(String peer_id) {
+        if (this.handles == null) {
+            this.handles = new HashMap<>();
+        }
+        if (!this.handles.containsKey(peer_id)) {
+            this.reads++;
+            this.handles.put(peer_id, this.peerHandles.get(peer_id));
+        }
+        return this.handles.get(peer_id);
+    }
+
+    public String getPeerId(int handle) {
+        if (this.peerIds == null) {
+            this.peerIds = new HashMap<>();
+        }
+        if (!this.peerIds.containsKey(handle)) {
+            this.reads++;
+            this.peerIds.put(handle, this.handlePeers.get(handle));
+        }
+        return this.peerIds.get(handle);
+    }
+
+    public void setHandle(String peer_id, int handle) {
+        if (this.handles == null) {
+            this.handles = new HashMap<>();
+        }
+        if (this.peerIds == null) {
+            this.peerIds = new HashMap<>();
+        }
+        this.peerHandles.set(peer_id, handle);
+        this.handlePeers.set(handle, peer_id);
+        this.handles.put(peer_id, handle);
+        this.peerIds.put(handle, peer_id);
+    }
+
+    /**
+     * Returns the bytes of the pinned CIDs allocated to the peer.
+     */
+    public BigInteger getUsedBytes(int handle) {
+        if (this.used == null) {
+            this.used = new HashMap<>();
+        }
+        if (!this.used.containsKey(handle)) {
+            this.reads++;
+            this.used.put(handle, this.usedBytes.getOrDefault(handle, BigInteger.ZERO));
+        }
+        return this.used.get(handle);
+    }
+
+    public void setUsedBytes(int handle, BigInteger bytes) {
+        if (this.used == null) {
+            this.used = new HashMap<>();
+        }
+        this.usedBytes.set(handle, bytes);
+        this.used.put(handle, bytes);
+    }
+
+    public <K, V> V read(DictDB<K, V> db, K key) {
+        this.reads++;
+        return db.get(key);
+    }
+
+    public <K, V> V getOrDefault(DictDB<K, V> db, K key, V defaultValue) {
+        V value = read(db, key);
+        return (value != null) ? value : defaultValue;
+    }
+
+    public <V> V read(VarDB<V> db) {
+        this.reads++;
+        return db.get();
+    }
+
+    public <V> V getOrDefault(VarDB<V> db, V defaultValue) {
+        V value = read(db);
+        return (value != null) ? value : defaultValue;
+    }
+
+    public <E> E read(ArrayDB<E> db, int index) {
+        this.reads++;
+        return db.get(index);
+    }
+
+    public int size(ArrayDB<?> db) {
+        this.reads++;
+        return db.size();
+    }
+
+    // Removes the last entry, which is read.
+    public <E> E pop(ArrayDB<E> db) {
+        this.reads++;
+        return db.pop();
+    }
+
+    /**
+     * Returns the allocation settings read by this call, or null if it has read none yet.
+     */
+    public AllocationSettings getAllocationSettings() {
+        return this.settings;
+    }
+
+    public void setAllocationSettings(AllocationSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Returns the number of records read from storage through this cache.
+     */
+    public int getReads() {
+        return this.reads;
+    }
+}
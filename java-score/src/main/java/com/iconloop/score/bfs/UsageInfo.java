@@ -0,0 +1,48 @@
+package com.iconloop.score.bfs;
+
+import score.ObjectReader;
+import score.ObjectWriter;
+
+import java.math.BigInteger;
+
+
+public class UsageInfo {
+    private long pins;
+    private BigInteger bytes;
+
+    public UsageInfo(long pins, BigInteger bytes) {
+        this.pins = pins;
+        this.bytes = bytes;
+    }
+
+    public long getPins() {
+        return pins;
+    }
+
+    public BigInteger getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Adds a pin of the size if count is 1, or removes it if count is -1.
+     * Pins made before the usage was counted are removed without having been added, so the usage stops at 0.
+     */
+    public void add(int count, BigInteger size) {
+        this.pins = Math.max(0, this.pins + count);
+        this.bytes = this.bytes.add(size.multiply(BigInteger.valueOf(count))).max(BigInteger.ZERO);
+    }
+
+    public static void writeObject(ObjectWriter w, UsageInfo u) {
+        w.writeListOfNullable(
+                u.pins,
+                u.bytes
+        );
+    }
+
+    public static UsageInfo readObject(ObjectReader r) {
+        r.beginList();
+        UsageInfo u = new UsageInfo(r.readLong(), r.readBigInteger());
+        r.end();
+        return u;
+    }
+}
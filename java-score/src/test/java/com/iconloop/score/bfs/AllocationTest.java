@@ -2,6 +2,9 @@ package com.iconloop.score.bfs;
 
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class MockBfsContents extends BfsContents {
@@ -14,6 +17,42 @@ class MockBfsContents extends BfsContents {
     }
 }
 
+// Peers from "Peer0" to "Peer<stale - 1>" were last seen at 0, the others at 100.
+class LivenessBfsContents extends MockBfsContents {
+    private final int stale;
+    int reads = 0;
+
+    LivenessBfsContents(int stale) {
+        this.stale = stale;
+    }
+
+    @Override
+    protected long getLastSeen(String peer_id) {
+        reads++;
+        return (Integer.parseInt(peer_id.substring("Peer".length())) < this.stale) ? 0 : 100;
+    }
+}
+
+class CountingPeers implements PeerSource {
+    private final int size;
+    int reads = 0;
+
+    CountingPeers(int size) {
+        this.size = size;
+    }
+
+    @Override
+    public int size() {
+        return this.size;
+    }
+
+    @Override
+    public String get(int index) {
+        reads++;
+        return "Peer" + index;
+    }
+}
+
 public class AllocationTest {
 
     @Test
@@ -49,4 +88,100 @@ public class AllocationTest {
         assertTrue(Helper.ArraysEqual(new String[]{"Alice0", "Alice4", "Alice1", "Alice3"}, allocator.makeAllocations()));
         System.out.println(Helper.StringListToJsonString(allocator.makeAllocations()));
     }
+
+    @Test
+    void allocationStepCostTest() {
+        int[] numOfPeers = new int[]{10, 1_000, 10_000};
+        for (int n : numOfPeers) {
+            // Fresh cursors
+            CountingPeers peers = new CountingPeers(n);
+            Allocator allocator = new Allocator(peers, 0, n - 1, null, 3, 5, 2, null);
+            assertEquals(5, allocator.makeAllocations().length);
+            assertEquals(5, peers.reads, "peer reads with " + n + " peers");
+
+            // Cursors wrapping around in the middle of the walk
+            peers = new CountingPeers(n);
+            allocator = new Allocator(peers, n / 2, n / 2 + 1, null, 3, 5, 2, null);
+            assertEquals(5, allocator.makeAllocations().length);
+            assertEquals(5, peers.reads, "peer reads with " + n + " peers");
+
+            // The user allocations are skipped by their positions, without reading them again
+            peers = new CountingPeers(n);
+            allocator = new Allocator(peers, 0, n - 1, new String[]{"Peer0", "Peer0", "PeerX"}, new int[]{0, 0, -1},
+                    3, 5, 2, null);
+            assertArrayEquals(new String[]{"Peer0", "Peer" + (n - 1), "Peer1", "Peer" + (n - 2), "Peer2"},
+                    allocator.makeAllocations());
+            assertEquals(4, peers.reads, "peer reads with " + n + " peers");
+        }
+    }
+
+    @Test
+    void livenessAllocationTest() {
+        // Stale peers are kept out of the list by sweep_stale_nodes, so the walks never read the liveness
+        int n = 1_000;
+        LivenessBfsContents bfsContents = new LivenessBfsContents(3);
+        CountingPeers peers = new CountingPeers(n);
+        Allocator allocator = new Allocator(peers, 0, n - 1, null, 3, 5, 2, bfsContents);
+        assertArrayEquals(new String[]{"Peer0", "Peer999", "Peer1", "Peer998", "Peer2"}, allocator.makeAllocations());
+        assertEquals(5, peers.reads);
+        assertEquals(0, bfsContents.reads);
+
+        allocator = new Allocator(new CountingPeers(n), 0, 0, null, 3, 3, 0, bfsContents);
+        assertEquals(3, allocator.makeRendezvousAllocations("CID0").length);
+        assertEquals(0, bfsContents.reads);
+    }
+
+    @Test
+    void rendezvousAllocationTest() {
+        int numOfPeers = 50;
+        String[] peers = new String[numOfPeers];
+        String[] reversed = new String[numOfPeers];
+        for (int i = 0; i < numOfPeers; i++) {
+            peers[i] = "Peer" + i;
+            reversed[numOfPeers - 1 - i] = "Peer" + i;
+        }
+
+        // Swap-remove Peer7 as remove_node does
+        String removed = "Peer7";
+        String[] remaining = new String[numOfPeers - 1];
+        System.arraycopy(peers, 0, remaining, 0, remaining.length);
+        remaining[7] = peers[numOfPeers - 1];
+
+        int moved = 0;
+        int numOfCids = 500;
+        for (int i = 0; i < numOfCids; i++) {
+            String cid = "CID" + i;
+            String[] allocations = new Allocator(peers, 0, 0, null, 3, 3, 0, null).makeRendezvousAllocations(cid);
+            assertEquals(3, allocations.length);
+
+            // The order of the peer list does not matter
+            assertArrayEquals(allocations, new Allocator(reversed, 0, 0, null, 3, 3, 0, null).makeRendezvousAllocations(cid));
+
+            // Only the CIDs allocated to the removed peer move, and only that replica changes
+            String[] after = new Allocator(remaining, 0, 0, null, 3, 3, 0, null).makeRendezvousAllocations(cid);
+            boolean hadRemoved = false;
+            for (String peer : allocations) {
+                if (peer.equals(removed)) {
+                    hadRemoved = true;
+                    continue;
+                }
+                boolean kept = false;
+                for (String peerAfter : after) {
+                    kept |= peer.equals(peerAfter);
+                }
+                assertTrue(kept);
+            }
+            if (hadRemoved) {
+                moved++;
+            } else {
+                assertArrayEquals(allocations, after);
+            }
+        }
+        assertTrue(moved > 0 && moved < numOfCids / 5, "moved " + moved + " of " + numOfCids);
+
+        // User allocations come first
+        String[] allocations = new Allocator(peers, 0, 0, new String[]{"Peer3"}, 3, 3, 0, null).makeRendezvousAllocations("CID0");
+        assertEquals("Peer3", allocations[0]);
+        assertFalse(allocations[1].equals("Peer3") || allocations[2].equals("Peer3"));
+    }
 }
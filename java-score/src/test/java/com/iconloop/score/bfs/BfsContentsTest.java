@@ -16,13 +16,27 @@ import org.junit.jupiter.api.MethodOrderer;
 import org.junit.jupiter.api.Order;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.TestMethodOrder;
+import score.Address;
+import score.ArrayDB;
+import score.BranchDB;
+import score.Context;
+import score.DictDB;
 import score.UserRevertedException;
+import score.VarDB;
+import score.annotation.External;
 import score.impl.Crypto;
 
 import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
 
 @TestMethodOrder(MethodOrderer.OrderAnnotation.class)
 public class BfsContentsTest extends TestBase {
@@ -37,6 +51,56 @@ public class BfsContentsTest extends TestBase {
     private static DidKeyHolder key1;
     private static DidKeyHolder key2;
 
+    // Drops the peer positions, which leaves the storage of a contract deployed before the peer index.
+    public static class LegacyPeersBfsContents extends BfsContents {
+        private final ArrayDB<String> peers = Context.newArrayDB("peers", String.class);
+        private final DictDB<String, Integer> peerIndexes = Context.newDictDB("peerIndexes", Integer.class);
+        private final VarDB<Integer> indexedPeers = Context.newVarDB("indexedPeers", Integer.class);
+
+        public LegacyPeersBfsContents(Address did_score) {
+            super(did_score);
+        }
+
+        @External
+        public void drop_peer_index() {
+            for (int i = 0; i < this.peers.size(); i++) {
+                this.peerIndexes.set(this.peers.get(i), null);
+            }
+            this.indexedPeers.set(null);
+        }
+
+        @External(readonly = true)
+        public Integer get_peer_index(String peer_id) {
+            return this.peerIndexes.get(peer_id);
+        }
+    }
+
+    // Drops the contents of a peer from its index, its digest and its usage, which leaves the storage of a contract
+    // deployed before the index of the contents of each peer.
+    public static class LegacyPeerCidsBfsContents extends BfsContents {
+        private final BranchDB<String, ArrayDB<String>> peerCidsEntries = Context.newBranchDB("peerCidsEntries", String.class);
+        private final BranchDB<String, DictDB<String, Integer>> peerCidsIndexes = Context.newBranchDB("peerCidsIndexes", Integer.class);
+        private final DictDB<String, Integer> peerHandles = Context.newDictDB("peerHandles", Integer.class);
+        private final DictDB<Integer, BigInteger> usedBytes = Context.newDictDB("usedBytes", BigInteger.class);
+        private final DictDB<Integer, byte[]> peerDigests = Context.newDictDB("peerDigests", byte[].class);
+
+        public LegacyPeerCidsBfsContents(Address did_score) {
+            super(did_score);
+        }
+
+        @External
+        public void drop_peer_cids(String peer_id) {
+            Integer handle = this.peerHandles.get(peer_id);
+            ArrayDB<String> entries = this.peerCidsEntries.at(String.valueOf(handle));
+            DictDB<String, Integer> indexes = this.peerCidsIndexes.at(String.valueOf(handle));
+            while (entries.size() > 0) {
+                indexes.set(entries.pop(), null);
+            }
+            this.usedBytes.set(handle, null);
+            this.peerDigests.set(handle, null);
+        }
+    }
+
     @BeforeAll
     static void beforeAll() throws Exception {
         didScore = sm.deploy(owner1, DidScoreMock.class);
@@ -45,11 +109,11 @@ public class BfsContentsTest extends TestBase {
         key2 = createDidAndKeyHolder("key2");
 
         // setup PRE nodes
-        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_0", "http://testNode0", null, null, null);
-        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_1", "http://testNode1", null, null, null);
-        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_2", "http://testNode2", null, null, null);
-        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_3", "http://testNode3", null, null, null);
-        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_4", "http://testNode4", null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_0", "http://testNode0", null, null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_1", "http://testNode1", null, null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_2", "http://testNode2", null, null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_3", "http://testNode3", null, null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_4", "http://testNode4", null, null, null, null);
     }
 
     private static DidKeyHolder createDidAndKeyHolder(String kid) throws AlgorithmException {
@@ -291,19 +355,19 @@ public class BfsContentsTest extends TestBase {
     @Order(3)
     void nodeTest() throws Exception {
         //add node
-        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE", "http://testNode", null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE", "http://testNode", null, null, null, null);
         var node = (NodeInfo) bfsContentsScore.call("get_node", "TEST_NODE");
         assertNotNull(node);
 
         //update node update
-        bfsContentsScore.invoke(owner1, "update_node", "TEST_NODE", "http://updateNode", "TEST_ENDPOINT", "TEST_NAME", null);
+        bfsContentsScore.invoke(owner1, "update_node", "TEST_NODE", "http://updateNode", "TEST_ENDPOINT", "TEST_NAME", null, null);
         node = (NodeInfo) bfsContentsScore.call("get_node", "TEST_NODE");
         assertEquals("http://updateNode", node.getUrl());
         assertEquals("TEST_ENDPOINT", node.getEndpoint());
         assertEquals("TEST_NAME", node.getName());
 
         // Negative: Another owner tries a node update
-        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "update_node", "TEST_NODE", "http://updateNode", "TEST_ENDPOINT", "TEST_NAME", null));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "update_node", "TEST_NODE", "http://updateNode", "TEST_ENDPOINT", "TEST_NAME", null, null));
 
 
         //remove node
@@ -315,6 +379,906 @@ public class BfsContentsTest extends TestBase {
         assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "remove_node", "TEST_NODE"));
     }
 
+    @Test
+    @Order(4)
+    void peerIndexTest() throws Exception {
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_A", "http://testNodeA", null, null, null, null);
+        bfsContentsScore.invoke(owner1, "add_node", "TEST_NODE_B", "http://testNodeB", null, null, null, null);
+        var info = (Map<String, Object>) bfsContentsScore.call("get_info");
+        int numOfPeers = (int) info.get("NumOfPeers");
+
+        // Removing a peer from the middle moves the last one into its slot
+        bfsContentsScore.invoke(owner1, "remove_node", "TEST_NODE_A");
+        info = (Map<String, Object>) bfsContentsScore.call("get_info");
+        assertEquals(numOfPeers - 1, info.get("NumOfPeers"));
+
+        // Negative: the removed peer must not be accepted as a user allocation
+        bfsContentsScore.invoke(owner1, "pin", "TEST_CID_PEER_INDEX", BigInteger.valueOf(100), getTimeStamp(1),
+                null, null, null, new String[]{"TEST_NODE_A", "TEST_NODE_B"});
+        var allocations = (Map<String, Object>) bfsContentsScore.call("check_allocations", "TEST_CID_PEER_INDEX");
+        String[] userAllocations = (String[]) allocations.get("user_allocations");
+        assertEquals("TEST_NODE_B", userAllocations[0]);
+        for (String peer : userAllocations) {
+            assertNotEquals("TEST_NODE_A", peer);
+        }
+
+        bfsContentsScore.invoke(owner1, "remove_node", "TEST_NODE_B");
+        info = (Map<String, Object>) bfsContentsScore.call("get_info");
+        assertEquals(numOfPeers - 2, info.get("NumOfPeers"));
+
+        // Negative: the index is complete for a fresh deployment
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "migrate_peer_index", BigInteger.TEN));
+
+        // A deployment from before the index has the peers but not their positions
+        Score score = sm.deploy(owner1, LegacyPeersBfsContents.class, didScore.getAddress());
+        for (int i = 0; i < 5; i++) {
+            score.invoke(owner1, "add_node", "NODE_" + i, "http://node" + i, null, null, null, null);
+        }
+        score.invoke(owner1, "drop_peer_index");
+        assertNull(score.call("get_peer_index", "NODE_0"));
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "migrate_peer_index", BigInteger.TWO));
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner1, "migrate_peer_index", BigInteger.ZERO));
+
+        score.invoke(owner1, "migrate_peer_index", BigInteger.TWO);
+        assertEquals(0, score.call("get_peer_index", "NODE_0"));
+        assertEquals(1, score.call("get_peer_index", "NODE_1"));
+        assertNull(score.call("get_peer_index", "NODE_2"));
+
+        // Removing during the migration moves the last peer, which is not indexed yet, into the slot
+        score.invoke(owner1, "remove_node", "NODE_1");
+        assertNull(score.call("get_peer_index", "NODE_1"));
+        assertEquals(1, score.call("get_peer_index", "NODE_4"));
+        assertNodes(score, "NODE_0", "NODE_4", "NODE_2", "NODE_3");
+
+        score.invoke(owner1, "migrate_peer_index", BigInteger.TWO);
+        assertEquals(2, score.call("get_peer_index", "NODE_2"));
+        assertEquals(3, score.call("get_peer_index", "NODE_3"));
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner1, "migrate_peer_index", BigInteger.TWO));
+
+        // The complete index is used by remove_node and by the user allocations
+        score.invoke(owner1, "remove_node", "NODE_0");
+        assertNull(score.call("get_peer_index", "NODE_0"));
+        assertEquals(0, score.call("get_peer_index", "NODE_3"));
+        assertNodes(score, "NODE_3", "NODE_4", "NODE_2");
+        score.invoke(owner1, "pin", "CID_MIGRATED", BigInteger.valueOf(100), getTimeStamp(1),
+                null, null, null, new String[]{"NODE_0", "NODE_2"});
+        allocations = (Map<String, Object>) score.call("check_allocations", "CID_MIGRATED");
+        userAllocations = (String[]) allocations.get("user_allocations");
+        assertEquals("NODE_2", userAllocations[0]);
+        for (String peer : userAllocations) {
+            assertNotEquals("NODE_0", peer);
+        }
+    }
+
+    private static void assertNodes(Score score, String... expected) {
+        var nodes = (List<Object>) score.call("all_node");
+        assertEquals(expected.length, nodes.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], ((NodeInfo) nodes.get(i)).getPeer_id());
+        }
+    }
+
+    @Test
+    @Order(5)
+    void allocationStrategyTest() throws Exception {
+        // Negative: only the owner can change the strategy, and only to a known one
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "set_allocation_strategy", "rendezvous"));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "set_allocation_strategy", "unknown"));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "set_allocation_strategy", "front_back"));
+
+        var info = (Map<String, Object>) bfsContentsScore.call("get_info");
+        bfsContentsScore.invoke(owner1, "set_allocation_strategy", "rendezvous");
+        var factors = (Map<String, Object>) bfsContentsScore.call("get_default_allocation_factors");
+        assertEquals("rendezvous", factors.get("allocation_strategy"));
+
+        bfsContentsScore.invoke(owner1, "pin", "TEST_CID_RENDEZVOUS", BigInteger.valueOf(100), getTimeStamp(1),
+                null, null, null, null);
+        var allocations = (Map<String, Object>) bfsContentsScore.call("check_allocations", "TEST_CID_RENDEZVOUS");
+        assertEquals(1, ((String[]) allocations.get("user_allocations")).length);
+
+        // The shared cursors are left untouched
+        var infoAfter = (Map<String, Object>) bfsContentsScore.call("get_info");
+        assertEquals(info.get("frontIndexOfPeers"), infoAfter.get("frontIndexOfPeers"));
+        assertEquals(info.get("backIndexOfPeers"), infoAfter.get("backIndexOfPeers"));
+
+        bfsContentsScore.invoke(owner1, "set_allocation_strategy", "front_back");
+    }
+
+    @Test
+    @Order(6)
+    void pinBatchTest() throws Exception {
+        String[] cids = new String[]{"TEST_CID_BATCH_0", "TEST_CID_BATCH_1", "TEST_CID_BATCH_2"};
+        BigInteger[] sizes = new BigInteger[]{BigInteger.valueOf(100), BigInteger.valueOf(200), BigInteger.valueOf(300)};
+        BigInteger expireAt = getTimeStamp(1);
+        BigInteger[] expireAts = new BigInteger[]{expireAt, expireAt, expireAt};
+        String[] names = new String[]{"name0", "name1", "name2"};
+        String signature = signBatch(key1, new Payload.Builder("pin_batch").cids(cids).sizes(sizes).expire_ats(expireAts)
+                .names(names).group("TEST_GROUP_BATCH"));
+
+        // Negative: the signature does not cover different sizes, names or group, nor their absence
+        BigInteger[] otherSizes = new BigInteger[]{BigInteger.valueOf(100), BigInteger.valueOf(200), BigInteger.valueOf(301)};
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "pin_batch",
+                cids, otherSizes, expireAts, names, "TEST_GROUP_BATCH", signature));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "pin_batch",
+                cids, sizes, expireAts, new String[]{"name0", "name1", "other"}, "TEST_GROUP_BATCH", signature));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "pin_batch",
+                cids, sizes, expireAts, names, "OTHER_GROUP", signature));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "pin_batch",
+                cids, sizes, expireAts, null, null, signature));
+
+        // Negative: mismatched lengths
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "pin_batch",
+                cids, new BigInteger[]{BigInteger.ONE}, expireAts, null, null, signature));
+
+        bfsContentsScore.invoke(owner1, "pin_batch", cids, sizes, expireAts, names, "TEST_GROUP_BATCH", signature);
+        for (int i = 0; i < cids.length; i++) {
+            var pin = (Map<String, Object>) bfsContentsScore.call("get_pin", key1.getDid(), cids[i]);
+            assertNotNull(pin);
+            assertEquals(sizes[i], pin.get("size"));
+            assertEquals("name" + i, pin.get("name"));
+            assertEquals("TEST_GROUP_BATCH", pin.get("group"));
+            assertEquals(expireAt, pin.get("expire_at"));
+        }
+
+        // Negative: the whole batch reverts if one of the cids already exists
+        String[] nextCids = new String[]{"TEST_CID_BATCH_3", "TEST_CID_BATCH_0"};
+        BigInteger[] nextSizes = new BigInteger[]{BigInteger.valueOf(100), BigInteger.valueOf(100)};
+        BigInteger[] nextExpireAts = new BigInteger[]{expireAt, expireAt};
+        String nextSignature = signBatch(key1, new Payload.Builder("pin_batch").cids(nextCids).sizes(nextSizes).expire_ats(nextExpireAts));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "pin_batch",
+                nextCids, nextSizes, nextExpireAts, null, null, nextSignature));
+        assertNull(bfsContentsScore.call("get_pin", key1.getDid(), "TEST_CID_BATCH_3"));
+    }
+
+    @Test
+    @Order(7)
+    void unpinAndUpdatePinBatchTest() throws Exception {
+        String[] cids = new String[]{"TEST_CID_BATCH_0", "TEST_CID_BATCH_1"};
+
+        // Update
+        BigInteger expireAt = getTimeStamp(2);
+        long baseHeight = sm.getBlock().getHeight();
+        String signature = signBatch(key1, new Payload.Builder("update_pin_batch").cids(cids).expire_at(expireAt).baseHeight(baseHeight));
+        bfsContentsScore.invoke(owner1, "update_pin_batch", cids, expireAt, signature);
+        for (String cid : cids) {
+            var pin = (Map<String, Object>) bfsContentsScore.call("get_pin", key1.getDid(), cid);
+            assertEquals(expireAt, pin.get("expire_at"));
+        }
+
+        // Negative: a cid given twice reverts before any pin is updated
+        String[] duplicated = new String[]{"TEST_CID_BATCH_0", "TEST_CID_BATCH_0"};
+        BigInteger nextExpireAt = getTimeStamp(3);
+        String duplicatedSignature = signBatch(key1, new Payload.Builder("update_pin_batch").cids(duplicated)
+                .expire_at(nextExpireAt).baseHeight(sm.getBlock().getHeight()));
+        var duplicateError = assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1,
+                "update_pin_batch", duplicated, nextExpireAt, duplicatedSignature));
+        assertTrue(duplicateError.getMessage().contains("duplicate cid"));
+        var duplicatedPin = (Map<String, Object>) bfsContentsScore.call("get_pin", key1.getDid(), "TEST_CID_BATCH_0");
+        assertEquals(expireAt, duplicatedPin.get("expire_at"));
+
+        // Negative: the base height is older than the last update of the pins
+        String staleSignature = signBatch(key1, new Payload.Builder("unpin_batch").cids(cids).baseHeight(baseHeight));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "unpin_batch", cids, staleSignature));
+
+        // Negative: the whole batch reverts if one of the cids is not pinned
+        String[] withUnknown = new String[]{"TEST_CID_BATCH_0", "TEST_CID_UNKNOWN"};
+        String unknownSignature = signBatch(key1, new Payload.Builder("unpin_batch").cids(withUnknown).baseHeight(sm.getBlock().getHeight()));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "unpin_batch", withUnknown, unknownSignature));
+
+        // Negative: a cid given twice reverts as a duplicate, before any pin is released
+        String duplicatedUnpinSignature = signBatch(key1, new Payload.Builder("unpin_batch").cids(duplicated).baseHeight(sm.getBlock().getHeight()));
+        duplicateError = assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1,
+                "unpin_batch", duplicated, duplicatedUnpinSignature));
+        assertTrue(duplicateError.getMessage().contains("duplicate cid"));
+        assertEquals(expireAt, ((Map<String, Object>) bfsContentsScore.call("get_pin", key1.getDid(), "TEST_CID_BATCH_0")).get("expire_at"));
+
+        // Unpin
+        signature = signBatch(key1, new Payload.Builder("unpin_batch").cids(cids).baseHeight(sm.getBlock().getHeight()));
+        bfsContentsScore.invoke(owner1, "unpin_batch", cids, signature);
+        for (String cid : cids) {
+            var pin = (Map<String, Object>) bfsContentsScore.call("get_pin", key1.getDid(), cid);
+            assertEquals(UNPIN_STATE, pin.get("expire_at"));
+        }
+        var pin = (Map<String, Object>) bfsContentsScore.call("get_pin", key1.getDid(), "TEST_CID_BATCH_2");
+        assertNotEquals(UNPIN_STATE, pin.get("expire_at"));
+
+        // Negative: already unpinned
+        String againSignature = signBatch(key1, new Payload.Builder("unpin_batch").cids(cids).baseHeight(sm.getBlock().getHeight()));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner1, "unpin_batch", cids, againSignature));
+    }
+
+    @Test
+    @Order(8)
+    void getNodesTest() throws Exception {
+        var allNode = bfsContentsScore.call("all_node");
+        int total = ((List<Object>) allNode).size();
+
+        var page = (Map<String, Object>) bfsContentsScore.call("get_nodes", BigInteger.ONE, BigInteger.TWO, false);
+        assertEquals(total, page.get("total"));
+        var nodes = (List<Object>) page.get("nodes");
+        assertEquals(2, nodes.size());
+        assertEquals(((NodeInfo) ((List<Object>) allNode).get(1)).getPeer_id(), ((NodeInfo) nodes.get(0)).getPeer_id());
+
+        page = (Map<String, Object>) bfsContentsScore.call("get_nodes", BigInteger.ONE, BigInteger.TWO, true);
+        String[] peerIds = (String[]) page.get("peer_id");
+        assertEquals(2, peerIds.length);
+        assertEquals(((NodeInfo) nodes.get(1)).getPeer_id(), peerIds[1]);
+        assertEquals(((NodeInfo) nodes.get(1)).getUrl(), ((String[]) page.get("url"))[1]);
+
+        // The last page is cut at the end of the list
+        page = (Map<String, Object>) bfsContentsScore.call("get_nodes", BigInteger.valueOf(total - 1), BigInteger.TEN, true);
+        assertEquals(1, ((String[]) page.get("peer_id")).length);
+        page = (Map<String, Object>) bfsContentsScore.call("get_nodes", BigInteger.valueOf(total + 1), BigInteger.TEN, true);
+        assertEquals(0, ((String[]) page.get("peer_id")).length);
+    }
+
+    @Test
+    @Order(9)
+    void pinsByOwnerTest() throws Exception {
+        String owner = owner2.getAddress().toString();
+        for (int i = 0; i < 3; i++) {
+            bfsContentsScore.invoke(owner2, "pin", "TEST_CID_OWNER_" + i, BigInteger.valueOf(100), getTimeStamp(1),
+                    null, null, null, null);
+        }
+        bfsContentsScore.invoke(owner2, "unpin", "TEST_CID_OWNER_0", null);
+
+        var page = (Map<String, Object>) bfsContentsScore.call("get_pins_by_owner", owner, BigInteger.ZERO, BigInteger.ONE);
+        assertEquals(2, page.get("total"));
+        assertEquals(1, page.get("next"));
+        var pins = (List<Object>) page.get("pins");
+        assertEquals(1, pins.size());
+        Set<Object> cids = new HashSet<>();
+        cids.add(((Map<String, Object>) pins.get(0)).get("cid"));
+
+        page = (Map<String, Object>) bfsContentsScore.call("get_pins_by_owner", owner, BigInteger.ONE, BigInteger.TEN);
+        assertEquals(2, page.get("next"));
+        for (Object pin : (List<Object>) page.get("pins")) {
+            cids.add(((Map<String, Object>) pin).get("cid"));
+        }
+        assertEquals(Set.of("TEST_CID_OWNER_1", "TEST_CID_OWNER_2"), cids);
+    }
+
+    @Test
+    @Order(10)
+    void collectExpiredTest() throws Exception {
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "collect_expired", BigInteger.ZERO));
+
+        // Nothing has expired yet, so every pin stays
+        bfsContentsScore.invoke(owner2, "collect_expired", BigInteger.TEN);
+        var page = (Map<String, Object>) bfsContentsScore.call("get_pins_by_owner", owner2.getAddress().toString(), BigInteger.ZERO, BigInteger.TEN);
+        assertEquals(2, page.get("total"));
+        assertNotNull(bfsContentsScore.call("get_pin", owner2.getAddress().toString(), "TEST_CID_OWNER_1"));
+
+        // Negative: an unpinned pin cannot be updated again
+        BigInteger expireAt = getTimeStamp(1);
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "update_pin", "TEST_CID_OWNER_0", expireAt, null));
+
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        BfsContents events = (BfsContents) spy(score.getInstance());
+        score.setInstance(events);
+        String owner = owner1.getAddress().toString();
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        score.invoke(owner1, "pin", "CID_E0", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        score.invoke(owner1, "pin", "CID_E1", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        score.invoke(owner1, "pin", "CID_SHARED", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        score.invoke(owner2, "pin", "CID_SHARED", BigInteger.valueOf(100), getTimeStamp(4), null, null, null, null);
+
+        // Past the bucket of expireAt, the expired pins are collected a few entries per call
+        sm.getBlock().increase(3 * 1800);
+        score.invoke(owner2, "collect_expired", BigInteger.ONE);
+        int remaining = (int) ((Map<String, Object>) score.call("get_pins_by_owner", owner, BigInteger.ZERO, BigInteger.TEN)).get("total");
+        assertTrue(remaining >= 2, "collected more than max_items");
+        int calls = 1;
+        while (remaining > 0) {
+            assertTrue(calls < 10, "collect_expired does not resume");
+            score.invoke(owner2, "collect_expired", BigInteger.ONE);
+            remaining = (int) ((Map<String, Object>) score.call("get_pins_by_owner", owner, BigInteger.ZERO, BigInteger.TEN)).get("total");
+            calls++;
+        }
+        assertTrue(calls > 1);
+
+        // The pins are deleted, and a CID only when its last pin is
+        assertNull(score.call("get_pin", owner, "CID_E1"));
+        assertNull(score.call("check_allocations", "CID_E1"));
+        verify(events).BFSEvent("RemovePin", "CID_E1", owner);
+        verify(events).PinRemoved("CID_E1", owner, true);
+        verify(events).CidRemoved("CID_E1", "[\"NODE_0\"]");
+        assertNull(score.call("get_pin", owner, "CID_SHARED"));
+        assertNotNull(score.call("check_allocations", "CID_SHARED"));
+        verify(events, never()).CidRemoved("CID_SHARED", "[\"NODE_0\"]");
+        assertEquals(BigInteger.ONE, ((Map<String, Object>) score.call("get_usage", owner2.getAddress().toString())).get("pins"));
+
+        // The reference of the other owner is the last one
+        sm.getBlock().increase(2 * 1800);
+        score.invoke(owner2, "collect_expired", BigInteger.TEN);
+        assertNull(score.call("get_pin", owner2.getAddress().toString(), "CID_SHARED"));
+        assertNull(score.call("check_allocations", "CID_SHARED"));
+        verify(events).CidRemoved("CID_SHARED", "[\"NODE_0\"]");
+    }
+
+    @Test
+    @Order(11)
+    void publicKeyCacheTest() throws Exception {
+        BigInteger expireAt = getTimeStamp(1);
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "invalidate_public_key", key2.getDid(), "key2"));
+
+        // A miss fetches the key from the DID score, and the next signatures reuse it
+        bfsContentsScore.invoke(owner1, "invalidate_public_key", key2.getDid(), "key2");
+        BigInteger queries = (BigInteger) didScore.call("getPublicKeyQueries");
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key2, "pin").cid("TEST_CID_KEY_0").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        assertEquals(queries.add(BigInteger.ONE), didScore.call("getPublicKeyQueries"));
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key2, "pin").cid("TEST_CID_KEY_1").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        assertEquals(queries.add(BigInteger.ONE), didScore.call("getPublicKeyQueries"));
+
+        // A rotated key does not verify against the cached one, so it is fetched again
+        var keyProvider = algorithm.generateKeyProvider("key2");
+        didScore.invoke(owner1, "register", key2.getDid(), "key2", algorithm.publicKeyToByte(keyProvider.getPublicKey()));
+        DidKeyHolder oldKey = key2;
+        key2 = new DidKeyHolder.Builder(keyProvider).did(oldKey.getDid()).build();
+        queries = (BigInteger) didScore.call("getPublicKeyQueries");
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key2, "pin").cid("TEST_CID_KEY_2").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        assertEquals(queries.add(BigInteger.ONE), didScore.call("getPublicKeyQueries"));
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key2, "pin").cid("TEST_CID_KEY_3").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        assertEquals(queries.add(BigInteger.ONE), didScore.call("getPublicKeyQueries"));
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "pin",
+                new ParamsBuilder(oldKey, "pin").cid("TEST_CID_KEY_4").size(BigInteger.valueOf(100)).expire_at(expireAt).build()));
+
+        // TTL of 0 disables the cache
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "set_public_key_cache_ttl", BigInteger.ZERO));
+        BigInteger ttl = (BigInteger) bfsContentsScore.call("get_public_key_cache_ttl");
+        bfsContentsScore.invoke(owner1, "set_public_key_cache_ttl", BigInteger.ZERO);
+        queries = (BigInteger) didScore.call("getPublicKeyQueries");
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key2, "pin").cid("TEST_CID_KEY_5").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        assertEquals(queries.add(BigInteger.ONE), didScore.call("getPublicKeyQueries"));
+        bfsContentsScore.invoke(owner1, "set_public_key_cache_ttl", ttl);
+
+        // A revoked key is accepted from the cache for at most the TTL
+        DidKeyHolder key3 = createDidAndKeyHolder("key3");
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key3, "pin").cid("TEST_CID_KEY_6").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        didScore.invoke(owner1, "revoke", key3.getDid(), "key3");
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key3, "pin").cid("TEST_CID_KEY_7").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        sm.getBlock().increase(ttl.longValue());
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "pin",
+                new ParamsBuilder(key3, "pin").cid("TEST_CID_KEY_8").size(BigInteger.valueOf(100)).expire_at(expireAt).build()));
+
+        // invalidate_public_key applies a revocation at once
+        DidKeyHolder key4 = createDidAndKeyHolder("key4");
+        bfsContentsScore.invoke(owner2, "pin", new ParamsBuilder(key4, "pin").cid("TEST_CID_KEY_9").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        didScore.invoke(owner1, "revoke", key4.getDid(), "key4");
+        bfsContentsScore.invoke(owner1, "invalidate_public_key", key4.getDid(), "key4");
+        assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "pin",
+                new ParamsBuilder(key4, "pin").cid("TEST_CID_KEY_10").size(BigInteger.valueOf(100)).expire_at(expireAt).build()));
+    }
+
+    @Test
+    @Order(12)
+    void capacityAllocationTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        score.invoke(owner1, "add_node", "NODE_1000", "http://node0", null, null, null, BigInteger.valueOf(1000));
+        score.invoke(owner1, "add_node", "NODE_500", "http://node1", null, null, null, BigInteger.valueOf(500));
+        score.invoke(owner1, "add_node", "NODE_200", "http://node2", null, null, null, BigInteger.valueOf(200));
+        score.invoke(owner1, "add_node", "NODE_UNDECLARED", "http://node3", null, null, null, null);
+        score.invoke(owner1, "set_allocation_strategy", "capacity");
+        BigInteger expireAt = getTimeStamp(1);
+
+        // The node with the most free space is chosen, and its usage follows the pins
+        score.invoke(owner1, "pin", "CID_300", BigInteger.valueOf(300), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_1000"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_300")).get("user_allocations"));
+        var usage = (Map<String, Object>) score.call("get_node_usage", "NODE_1000");
+        assertEquals(BigInteger.valueOf(300), usage.get("used"));
+        assertEquals(BigInteger.valueOf(700), usage.get("free"));
+
+        score.invoke(owner1, "pin", "CID_600", BigInteger.valueOf(600), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_1000"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_600")).get("user_allocations"));
+        score.invoke(owner1, "pin", "CID_450", BigInteger.valueOf(450), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_500"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_450")).get("user_allocations"));
+
+        // Negative: no node has room for it, and a node without a declared capacity is never chosen
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner1, "pin", "CID_400", BigInteger.valueOf(400), expireAt, null, null, null, null));
+        score.invoke(owner1, "pin", "CID_150", BigInteger.valueOf(150), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_200"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_150")).get("user_allocations"));
+
+        // Unpinning frees the space
+        score.invoke(owner1, "unpin", "CID_600", null);
+        assertEquals(BigInteger.valueOf(700), ((Map<String, Object>) score.call("get_node_usage", "NODE_1000")).get("free"));
+        score.invoke(owner1, "pin", "CID_400", BigInteger.valueOf(400), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_1000"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_400")).get("user_allocations"));
+
+        // A declared capacity makes the node eligible, and a user allocation without room is skipped
+        score.invoke(owner1, "update_node", "NODE_UNDECLARED", null, null, null, null, BigInteger.valueOf(5000));
+        score.invoke(owner1, "pin", "CID_100", BigInteger.valueOf(100), expireAt, null, null, null, new String[]{"NODE_500"});
+        assertArrayEquals(new String[]{"NODE_UNDECLARED"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_100")).get("user_allocations"));
+        assertEquals(BigInteger.valueOf(4900), ((Map<String, Object>) score.call("get_node_usage", "NODE_UNDECLARED")).get("free"));
+    }
+
+    @Test
+    @Order(13)
+    void reallocateTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        score.invoke(owner1, "add_node", "NODE_A", "http://node0", null, null, null, BigInteger.valueOf(1000));
+        score.invoke(owner1, "add_node", "NODE_B", "http://node1", null, null, null, BigInteger.valueOf(800));
+        score.invoke(owner1, "add_node", "NODE_C", "http://node2", null, null, null, BigInteger.valueOf(500));
+        score.invoke(owner1, "set_allocation_strategy", "capacity");
+        BigInteger expireAt = getTimeStamp(1);
+
+        score.invoke(owner1, "pin", "CID_1", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        score.invoke(owner1, "pin", "CID_2", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_A"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_1")).get("user_allocations"));
+        assertArrayEquals(new String[]{"NODE_A"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_2")).get("user_allocations"));
+
+        // Negative: the node is still in service
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "reallocate", "NODE_A", BigInteger.TEN));
+
+        // The contents move in bounded steps to the node with the most free space
+        score.invoke(owner1, "remove_node", "NODE_A");
+        score.invoke(owner2, "reallocate", "NODE_A", BigInteger.ONE);
+        assertArrayEquals(new String[]{"NODE_A"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_1")).get("user_allocations"));
+        assertArrayEquals(new String[]{"NODE_B"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_2")).get("user_allocations"));
+        score.invoke(owner2, "reallocate", "NODE_A", BigInteger.TEN);
+        assertArrayEquals(new String[]{"NODE_B"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_1")).get("user_allocations"));
+        assertEquals(BigInteger.valueOf(200), ((Map<String, Object>) score.call("get_node_usage", "NODE_B")).get("used"));
+
+        // Without a peer which does not hold it yet, the content keeps its other replicas
+        score.invoke(owner1, "set_default_allocation_factors", BigInteger.TWO, BigInteger.TWO, BigInteger.ZERO);
+        score.invoke(owner1, "pin", "CID_3", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_B", "NODE_C"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_3")).get("user_allocations"));
+        score.invoke(owner1, "remove_node", "NODE_C");
+        score.invoke(owner2, "reallocate", "NODE_C", BigInteger.TEN);
+        assertArrayEquals(new String[]{"NODE_B"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_3")).get("user_allocations"));
+        assertEquals(BigInteger.valueOf(300), ((Map<String, Object>) score.call("get_node_usage", "NODE_B")).get("used"));
+
+        // The node lists the contents it has to store, page by page
+        var page = (Map<String, Object>) score.call("get_node_pins", "NODE_B", BigInteger.ZERO, BigInteger.TWO);
+        assertEquals(3, page.get("total"));
+        assertEquals(2, page.get("next"));
+        Set<String> cids = new HashSet<>();
+        for (Object pin : (List<Object>) page.get("pins")) {
+            assertEquals(BigInteger.valueOf(100), ((Map<String, Object>) pin).get("size"));
+            cids.add((String) ((Map<String, Object>) pin).get("cid"));
+        }
+        page = (Map<String, Object>) score.call("get_node_pins", "NODE_B", BigInteger.TWO, BigInteger.TEN);
+        assertEquals(1, ((List<Object>) page.get("pins")).size());
+        cids.add((String) ((Map<String, Object>) ((List<Object>) page.get("pins")).get(0)).get("cid"));
+        assertEquals(Set.of("CID_1", "CID_2", "CID_3"), cids);
+        assertEquals(0, ((Map<String, Object>) score.call("get_node_pins", "NODE_A", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+
+        // Unpinning removes the content from the listing
+        score.invoke(owner1, "unpin", "CID_2", null);
+        assertEquals(2, ((Map<String, Object>) score.call("get_node_pins", "NODE_B", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+
+        // The digest follows the listing whatever the order of the changes
+        byte[] expected = Crypto.hash("sha3-256", "CID_1".getBytes());
+        byte[] other = Crypto.hash("sha3-256", "CID_3".getBytes());
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] ^= other[i];
+        }
+        var digest = (Map<String, Object>) score.call("get_node_digest", "NODE_B");
+        assertEquals(2, digest.get("count"));
+        assertArrayEquals(expected, (byte[]) digest.get("digest"));
+        digest = (Map<String, Object>) score.call("get_node_digest", "NODE_A");
+        assertEquals(0, digest.get("count"));
+        assertArrayEquals(new byte[32], (byte[]) digest.get("digest"));
+    }
+
+    @Test
+    @Order(14)
+    void typedEventTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        BfsContents events = (BfsContents) spy(score.getInstance());
+        score.setInstance(events);
+        String owner = owner1.getAddress().toString();
+        BigInteger expireAt = getTimeStamp(1);
+
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", "/ip4/127.0.0.1", null, null, null);
+        verify(events).NodeAdded("NODE_0", owner1.getAddress(), "http://node0", "/ip4/127.0.0.1");
+
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), expireAt, "GROUP_0", null, null, null);
+        verify(events).PinAdded("CID_0", owner, BigInteger.valueOf(100), expireAt, "GROUP_0", "[\"NODE_0\"]");
+        verify(events).PeerAssigned("NODE_0", "CID_0", BigInteger.valueOf(100));
+
+        // The peer stores the content once, whatever the number of pins
+        score.invoke(owner2, "pin", "CID_0", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        verify(events).PinAdded("CID_0", owner2.getAddress().toString(), BigInteger.valueOf(100), expireAt, "", "[\"NODE_0\"]");
+        verify(events).PeerAssigned(any(), any(), any());
+
+        BigInteger newExpireAt = getTimeStamp(2);
+        score.invoke(owner1, "update_pin", "CID_0", newExpireAt, null);
+        verify(events).PinUpdated("CID_0", owner, newExpireAt);
+
+        score.invoke(owner1, "unpin", "CID_0", null);
+        verify(events).PinRemoved("CID_0", owner, false);
+        verify(events, never()).PeerReleased(any(), any());
+        score.invoke(owner2, "unpin", "CID_0", null);
+        verify(events).PeerReleased("NODE_0", "CID_0");
+
+        score.invoke(owner1, "remove_node", "NODE_0");
+        verify(events).NodeRemoved("NODE_0");
+    }
+
+    @Test
+    @Order(15)
+    void changeJournalTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        String pinKey = owner1.getAddress().toString() + "/CID_0";
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        score.invoke(owner1, "update_pin", "CID_0", getTimeStamp(2), null);
+
+        var page = (Map<String, Object>) score.call("get_changes_since", BigInteger.ZERO, null, BigInteger.TEN);
+        var changes = (List<Object>) page.get("changes");
+        assertEquals(3, changes.size());
+        assertEquals(false, page.get("truncated"));
+        assertEquals(3L, page.get("next"));
+        assertEquals("AddNode", ((Map<String, Object>) changes.get(0)).get("kind"));
+        assertEquals("NODE_0", ((Map<String, Object>) changes.get(0)).get("key"));
+        assertEquals("AddPin", ((Map<String, Object>) changes.get(1)).get("kind"));
+        assertEquals(pinKey, ((Map<String, Object>) changes.get(1)).get("key"));
+
+        // Only the changes after the height, page by page
+        long pinHeight = (long) ((Map<String, Object>) changes.get(1)).get("height");
+        page = (Map<String, Object>) score.call("get_changes_since", BigInteger.valueOf(pinHeight), null, BigInteger.ONE);
+        changes = (List<Object>) page.get("changes");
+        assertEquals(1, changes.size());
+        assertEquals("UpdatePin", ((Map<String, Object>) changes.get(0)).get("kind"));
+        page = (Map<String, Object>) score.call("get_changes_since", null, BigInteger.valueOf((long) page.get("next")), BigInteger.ONE);
+        assertEquals(0, ((List<Object>) page.get("changes")).size());
+        // The first change is read from cursor 0
+        page = (Map<String, Object>) score.call("get_changes_since", null, BigInteger.ZERO, BigInteger.ONE);
+        assertEquals("AddNode", ((Map<String, Object>) ((List<Object>) page.get("changes")).get(0)).get("kind"));
+
+        // Negative: the height and the cursor are exclusive
+        assertThrows(UserRevertedException.class, () -> score.call("get_changes_since", BigInteger.ZERO, BigInteger.ZERO, BigInteger.ONE));
+        assertThrows(UserRevertedException.class, () -> score.call("get_changes_since", null, null, BigInteger.ONE));
+
+        // Negative: only the owner sets the retention
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "set_change_retention", BigInteger.ONE));
+
+        // Old entries are removed by the next changes and by compact_changes
+        score.invoke(owner1, "set_change_retention", BigInteger.ONE);
+        score.invoke(owner1, "unpin", "CID_0", null);
+        score.invoke(owner2, "compact_changes", BigInteger.TEN);
+        page = (Map<String, Object>) score.call("get_changes_since", BigInteger.ZERO, null, BigInteger.TEN);
+        changes = (List<Object>) page.get("changes");
+        assertEquals(true, page.get("truncated"));
+        assertEquals(2, changes.size());
+        assertEquals("RemoveCid", ((Map<String, Object>) changes.get(0)).get("kind"));
+        assertEquals("UnPin", ((Map<String, Object>) changes.get(1)).get("kind"));
+        assertEquals(5L, page.get("end"));
+        // After the compaction, the search by height starts from the retained changes, and so does an old cursor
+        long unpinHeight = (long) ((Map<String, Object>) changes.get(1)).get("height");
+        page = (Map<String, Object>) score.call("get_changes_since", BigInteger.valueOf(unpinHeight - 1), null, BigInteger.TEN);
+        assertEquals(false, page.get("truncated"));
+        assertEquals(2, ((List<Object>) page.get("changes")).size());
+        page = (Map<String, Object>) score.call("get_changes_since", null, BigInteger.ZERO, BigInteger.TEN);
+        assertEquals(true, page.get("truncated"));
+        assertEquals(2, ((List<Object>) page.get("changes")).size());
+    }
+
+    @Test
+    @Order(16)
+    void tombstoneTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        String owner = owner1.getAddress().toString();
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+
+        // The unpinned pin stays readable, and the CID is deleted with its last pin
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        score.invoke(owner1, "unpin", "CID_0", null);
+        assertEquals(UNPIN_STATE, ((Map<String, Object>) score.call("get_pin", owner, "CID_0")).get("expire_at"));
+        assertNull(score.call("check_allocations", "CID_0"));
+
+        // The same owner can pin it again
+        BigInteger expireAt = getTimeStamp(2);
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        assertEquals(expireAt, ((Map<String, Object>) score.call("get_pin", owner, "CID_0")).get("expire_at"));
+        assertNotNull(score.call("check_allocations", "CID_0"));
+
+        // Unpinned pins are kept during the grace window
+        score.invoke(owner1, "unpin", "CID_0", null);
+        score.invoke(owner2, "purge_tombstones", BigInteger.TEN);
+        assertNotNull(score.call("get_pin", owner, "CID_0"));
+
+        // Negative: only the owner sets the grace window
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "set_tombstone_grace", BigInteger.ZERO));
+
+        // A tombstone inside the window survives the purge, and is purged once the height passes it
+        score.invoke(owner1, "set_tombstone_grace", BigInteger.valueOf(20));
+        assertEquals(BigInteger.valueOf(20), score.call("get_tombstone_grace"));
+        score.invoke(owner1, "pin", "CID_3", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        score.invoke(owner1, "unpin", "CID_3", null);
+
+        // Negative: the signature of an earlier pin is not replayed while the pin is unpinned, nor once it is purged
+        Object[] signedPin = new ParamsBuilder(key1, "pin").cid("CID_SIGNED").size(BigInteger.valueOf(100)).expire_at(getTimeStamp(3)).build();
+        score.invoke(owner2, "pin", signedPin);
+        score.invoke(owner2, "unpin", new ParamsBuilder(key1, "unpin").cid("CID_SIGNED").baseHeight(sm.getBlock().getHeight()).build());
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "pin", signedPin));
+        assertEquals(UNPIN_STATE, ((Map<String, Object>) score.call("get_pin", key1.getDid(), "CID_SIGNED")).get("expire_at"));
+
+        score.invoke(owner2, "purge_tombstones", BigInteger.TEN);
+        assertEquals(UNPIN_STATE, ((Map<String, Object>) score.call("get_pin", owner, "CID_3")).get("expire_at"));
+        assertNotNull(score.call("get_pin", owner, "CID_0"));
+        sm.getBlock().increase(40);
+        score.invoke(owner2, "purge_tombstones", BigInteger.TEN);
+        assertNull(score.call("get_pin", owner, "CID_0"));
+        assertNull(score.call("get_pin", owner, "CID_3"));
+        assertNull(score.call("get_pin", key1.getDid(), "CID_SIGNED"));
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "pin", signedPin));
+
+        // A signature based on the last update of the deleted pin pins it again
+        BigInteger expireAt3 = getTimeStamp(3);
+        score.invoke(owner2, "pin", new ParamsBuilder(key1, "pin").cid("CID_SIGNED").size(BigInteger.valueOf(100))
+                .expire_at(expireAt3).baseHeight(sm.getBlock().getHeight()).build());
+        assertEquals(expireAt3, ((Map<String, Object>) score.call("get_pin", key1.getDid(), "CID_SIGNED")).get("expire_at"));
+
+        score.invoke(owner1, "set_tombstone_grace", BigInteger.ZERO);
+        score.invoke(owner2, "purge_tombstones", BigInteger.TEN);
+        assertNull(score.call("get_pin", owner, "CID_0"));
+
+        // Without a grace window, unpinning deletes the pin right away
+        score.invoke(owner1, "pin", "CID_1", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        score.invoke(owner1, "unpin", "CID_1", null);
+        assertNull(score.call("get_pin", owner, "CID_1"));
+
+        // Pinned contents are not purged
+        score.invoke(owner1, "pin", "CID_2", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        score.invoke(owner2, "purge_pins", owner, new String[]{"CID_2"});
+        assertNotNull(score.call("get_pin", owner, "CID_2"));
+        assertNotNull(score.call("check_allocations", "CID_2"));
+    }
+
+    @Test
+    @Order(17)
+    void unpinGroupTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        String owner = owner1.getAddress().toString();
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        BigInteger expireAt = getTimeStamp(1);
+        for (int i = 0; i < 3; i++) {
+            score.invoke(owner1, "pin", "CID_A" + i, BigInteger.valueOf(100), expireAt, "GROUP_A", null, null, null);
+        }
+        score.invoke(owner1, "pin", "CID_B0", BigInteger.valueOf(100), expireAt, "GROUP_B", null, null, null);
+
+        var page = (Map<String, Object>) score.call("get_group_pins", owner, "GROUP_A", BigInteger.ZERO, BigInteger.TWO);
+        assertEquals(3, page.get("total"));
+        assertEquals(2, ((List<Object>) page.get("pins")).size());
+
+        // The group is unpinned in steps, and the other groups are kept
+        score.invoke(owner1, "unpin_group", "GROUP_A", BigInteger.TWO, null);
+        assertEquals(1, ((Map<String, Object>) score.call("get_group_pins", owner, "GROUP_A", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        score.invoke(owner1, "unpin_group", "GROUP_A", BigInteger.TWO, null);
+        assertEquals(0, ((Map<String, Object>) score.call("get_group_pins", owner, "GROUP_A", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        for (int i = 0; i < 3; i++) {
+            assertEquals(UNPIN_STATE, ((Map<String, Object>) score.call("get_pin", owner, "CID_A" + i)).get("expire_at"));
+        }
+        assertEquals(1, ((Map<String, Object>) score.call("get_group_pins", owner, "GROUP_B", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        assertEquals(1, ((Map<String, Object>) score.call("get_pins_by_owner", owner, BigInteger.ZERO, BigInteger.TEN)).get("total"));
+
+        // One signature covers every step until the group is empty
+        for (int i = 0; i < 2; i++) {
+            score.invoke(owner1, "pin", new ParamsBuilder(key1, "pin").cid("CID_S" + i).group("GROUP_S").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        }
+        String signature = signBatch(key1, new Payload.Builder("unpin_group").group("GROUP_S").baseHeight(sm.getBlock().getHeight()));
+        score.invoke(owner2, "unpin_group", "GROUP_S", BigInteger.ONE, signature);
+        assertEquals(1, ((Map<String, Object>) score.call("get_group_pins", key1.getDid(), "GROUP_S", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        score.invoke(owner2, "unpin_group", "GROUP_S", BigInteger.ONE, signature);
+        assertEquals(0, ((Map<String, Object>) score.call("get_group_pins", key1.getDid(), "GROUP_S", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+
+        // Negative: the signature cannot be replayed on the pins added after the group was emptied
+        score.invoke(owner1, "pin", new ParamsBuilder(key1, "pin").cid("CID_S2").group("GROUP_S").size(BigInteger.valueOf(100)).expire_at(expireAt).build());
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "unpin_group", "GROUP_S", BigInteger.ONE, signature));
+        assertEquals(1, ((Map<String, Object>) score.call("get_group_pins", key1.getDid(), "GROUP_S", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+    }
+
+    @Test
+    @Order(18)
+    void usageTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        String owner = owner1.getAddress().toString();
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        BigInteger expireAt = getTimeStamp(1);
+
+        // A CID pinned by two owners counts in the usage of both, and is stored once
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        score.invoke(owner2, "pin", "CID_0", BigInteger.valueOf(100), expireAt, null, null, null, null);
+        score.invoke(owner1, "pin", "CID_1", BigInteger.valueOf(50), expireAt, null, null, null, null);
+        var usage = (Map<String, Object>) score.call("get_usage", owner);
+        assertEquals(BigInteger.TWO, usage.get("pins"));
+        assertEquals(BigInteger.valueOf(150), usage.get("bytes"));
+        assertNull(usage.get("quota"));
+        var info = (Map<String, Object>) score.call("get_info");
+        assertEquals(BigInteger.valueOf(3), info.get("total_pins"));
+        assertEquals(BigInteger.valueOf(250), info.get("total_bytes"));
+        assertEquals(BigInteger.TWO, info.get("cids"));
+        assertEquals(BigInteger.valueOf(150), info.get("stored_bytes"));
+
+        // Unpinning releases the usage, and the stored bytes with the last pin of the CID
+        score.invoke(owner1, "unpin", "CID_0", null);
+        usage = (Map<String, Object>) score.call("get_usage", owner);
+        assertEquals(BigInteger.ONE, usage.get("pins"));
+        assertEquals(BigInteger.valueOf(50), usage.get("bytes"));
+        info = (Map<String, Object>) score.call("get_info");
+        assertEquals(BigInteger.TWO, info.get("cids"));
+        assertEquals(BigInteger.valueOf(150), info.get("stored_bytes"));
+        score.invoke(owner2, "unpin", "CID_0", null);
+        info = (Map<String, Object>) score.call("get_info");
+        assertEquals(BigInteger.ONE, info.get("total_pins"));
+        assertEquals(BigInteger.ONE, info.get("cids"));
+        assertEquals(BigInteger.valueOf(50), info.get("stored_bytes"));
+
+        // The quota is checked when pinning
+        score.invoke(owner1, "set_quota", owner, BigInteger.valueOf(100));
+        assertEquals(BigInteger.valueOf(100), ((Map<String, Object>) score.call("get_usage", owner)).get("quota"));
+        score.invoke(owner1, "pin", "CID_2", BigInteger.valueOf(50), expireAt, null, null, null, null);
+        assertThrows(UserRevertedException.class, () ->
+                score.invoke(owner1, "pin", "CID_3", BigInteger.ONE, expireAt, null, null, null, null));
+        assertEquals(BigInteger.TWO, ((Map<String, Object>) score.call("get_usage", owner)).get("pins"));
+        score.invoke(owner1, "set_quota", owner, null);
+        score.invoke(owner1, "pin", "CID_3", BigInteger.ONE, expireAt, null, null, null, null);
+
+        // Negative: only the owner of the contract can set a quota
+        assertThrows(UserRevertedException.class, () ->
+                score.invoke(owner2, "set_quota", owner2.getAddress().toString(), BigInteger.ONE));
+    }
+
+    @Test
+    @Order(19)
+    void heartbeatTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        score.invoke(owner1, "add_node", "NODE_1", "http://node1", null, null, null, null);
+        // A node which has sent no heartbeat was seen when it was added
+        long created = ((NodeInfo) score.call("get_node", "NODE_0")).getCreated();
+        assertEquals(BigInteger.valueOf(created), score.call("get_last_seen", "NODE_0"));
+
+        // Enabling the window long after the nodes were added gives them one window for their first heartbeat
+        sm.getBlock().increase(200);
+        score.invoke(owner1, "set_liveness_window", BigInteger.valueOf(100));
+        assertEquals(BigInteger.valueOf(100), score.call("get_liveness_window"));
+        BigInteger since = (BigInteger) score.call("get_last_seen", "NODE_0");
+        assertTrue(since.longValue() > created + 200);
+        score.invoke(owner1, "sweep_stale_nodes", BigInteger.TEN);
+        assertEquals(0, ((Map<String, Object>) score.call("get_info")).get("NumOfStalePeers"));
+
+        // Only NODE_1 keeps sending heartbeats, and the sweep drops NODE_0 from the allocation
+        sm.getBlock().increase(150);
+        score.invoke(owner1, "heartbeat", "NODE_1");
+        assertTrue(((BigInteger) score.call("get_last_seen", "NODE_1")).compareTo(since) > 0);
+        score.invoke(owner1, "sweep_stale_nodes", BigInteger.TEN);
+        var info = (Map<String, Object>) score.call("get_info");
+        assertEquals(1, info.get("NumOfPeers"));
+        assertEquals(1, info.get("NumOfStalePeers"));
+        assertEquals(2, ((List<Object>) score.call("all_node")).size());
+        for (int i = 0; i < 4; i++) {
+            score.invoke(owner1, "pin", "CID_" + i, BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+            assertArrayEquals(new String[]{"NODE_1"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_" + i)).get("user_allocations"));
+        }
+        // Negative: a stale node given by the user is not allocated either
+        score.invoke(owner1, "pin", "CID_U", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, new String[]{"NODE_0"});
+        assertArrayEquals(new String[]{"NODE_1"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_U")).get("user_allocations"));
+
+        // Its next heartbeat puts it back
+        score.invoke(owner1, "heartbeat", "NODE_0");
+        assertEquals(2, ((Map<String, Object>) score.call("get_info")).get("NumOfPeers"));
+
+        // Negative: only the owner of the node sends its heartbeats
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "heartbeat", "NODE_0"));
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner1, "heartbeat", "NODE_X"));
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "set_liveness_window", BigInteger.ONE));
+
+        score.invoke(owner1, "remove_node", "NODE_0");
+        assertNull(score.call("get_last_seen", "NODE_0"));
+    }
+
+    @Test
+    @Order(20)
+    void staleCapacityTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        for (int i = 0; i < 3; i++) {
+            score.invoke(owner1, "add_node", "NODE_STALE" + i, "http://stale" + i, null, null, null, BigInteger.valueOf(1000));
+        }
+        score.invoke(owner1, "add_node", "NODE_LIVE", "http://live", null, null, null, BigInteger.valueOf(500));
+        score.invoke(owner1, "set_allocation_strategy", "capacity");
+        score.invoke(owner1, "set_liveness_window", BigInteger.valueOf(10));
+        sm.getBlock().increase(20);
+        score.invoke(owner1, "heartbeat", "NODE_LIVE");
+
+        // Allocation reads no heartbeat and drops nothing, so the stale nodes are allocated until a sweep
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        String[] allocations = (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_0")).get("user_allocations");
+        assertTrue(allocations[0].startsWith("NODE_STALE"));
+        assertEquals(0, ((Map<String, Object>) score.call("get_info")).get("NumOfStalePeers"));
+
+        score.invoke(owner2, "sweep_stale_nodes", BigInteger.TEN);
+        var info = (Map<String, Object>) score.call("get_info");
+        assertEquals(1, info.get("NumOfPeers"));
+        assertEquals(3, info.get("NumOfStalePeers"));
+        score.invoke(owner1, "pin", "CID_2", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_LIVE"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_2")).get("user_allocations"));
+
+        // A heartbeat puts the node back
+        score.invoke(owner1, "heartbeat", "NODE_STALE0");
+        score.invoke(owner1, "pin", "CID_1", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        assertArrayEquals(new String[]{"NODE_STALE0"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_1")).get("user_allocations"));
+        assertEquals(4, ((Map<String, Object>) score.call("get_nodes", BigInteger.ZERO, BigInteger.TEN, false)).get("total"));
+    }
+
+    @Test
+    @Order(21)
+    void groupExpiryTest() throws Exception {
+        Score score = sm.deploy(owner1, BfsContents.class, didScore.getAddress());
+        String owner = owner1.getAddress().toString();
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        score.invoke(owner1, "update_group", "GROUP_E", getTimeStamp(10), null);
+        score.invoke(owner1, "update_group", "GROUP_F", getTimeStamp(1), null);
+        score.invoke(owner1, "pin", "CID_E0", BigInteger.valueOf(100), getTimeStamp(1), "GROUP_E", null, null, null);
+        score.invoke(owner1, "pin", "CID_E1", BigInteger.valueOf(100), getTimeStamp(1), "GROUP_E", null, null, null);
+        score.invoke(owner1, "pin", "CID_F", BigInteger.valueOf(100), getTimeStamp(1), "GROUP_F", null, null, null);
+        score.invoke(owner1, "pin", "CID_P", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, null);
+        // The pin moves in the index by its own expiration, which its group overrides
+        score.invoke(owner1, "update_pin", "CID_E1", getTimeStamp(2), null);
+        // Extending the group keeps its pins past their own expiration
+        score.invoke(owner1, "update_group", "GROUP_F", getTimeStamp(10), null);
+
+        sm.getBlock().increase(3 * 1800);
+        score.invoke(owner2, "collect_expired", BigInteger.TEN);
+        assertNull(score.call("get_pin", owner, "CID_P"));
+        assertNotNull(score.call("get_pin", owner, "CID_E0"));
+        assertNotNull(score.call("get_pin", owner, "CID_E1"));
+        assertNotNull(score.call("get_pin", owner, "CID_F"));
+
+        // Shortening the group collects its pins at the new expiration
+        score.invoke(owner1, "update_group", "GROUP_E", getTimeStamp(1), null);
+        sm.getBlock().increase(2 * 1800);
+        score.invoke(owner2, "collect_expired", BigInteger.TEN);
+        assertNull(score.call("get_pin", owner, "CID_E0"));
+        assertNull(score.call("get_pin", owner, "CID_E1"));
+        assertNotNull(score.call("get_pin", owner, "CID_F"));
+        assertEquals(0, ((Map<String, Object>) score.call("get_group_pins", owner, "GROUP_E", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        assertEquals(BigInteger.ONE, ((Map<String, Object>) score.call("get_usage", owner)).get("pins"));
+
+        // A pin added to the emptied group is collected through the group again
+        score.invoke(owner1, "pin", "CID_E2", BigInteger.valueOf(100), getTimeStamp(1), "GROUP_E", null, null, null);
+        sm.getBlock().increase(3 * 1800);
+        score.invoke(owner2, "collect_expired", BigInteger.TEN);
+        assertNull(score.call("get_pin", owner, "CID_E2"));
+
+        // Listing pins which are indexed already changes nothing
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "migrate_pin_index", owner, new String[]{"CID_F"}));
+        score.invoke(owner1, "migrate_pin_index", owner, new String[]{"CID_F", "CID_E0"});
+        assertEquals(1, ((Map<String, Object>) score.call("get_pins_by_owner", owner, BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        assertEquals(1, ((Map<String, Object>) score.call("get_group_pins", owner, "GROUP_F", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+    }
+
+    @Test
+    @Order(22)
+    void migratePeerCidsTest() throws Exception {
+        Score score = sm.deploy(owner1, LegacyPeerCidsBfsContents.class, didScore.getAddress());
+        score.invoke(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null);
+        score.invoke(owner1, "add_node", "NODE_1", "http://node1", null, null, null, null);
+        score.invoke(owner1, "pin", "CID_0", BigInteger.valueOf(100), getTimeStamp(1), null, null, null, new String[]{"NODE_0"});
+        score.invoke(owner1, "drop_peer_cids", "NODE_0");
+        assertEquals(0, ((Map<String, Object>) score.call("get_node_pins", "NODE_0", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+
+        // Negative: only the owner of the contract lists the contents
+        assertThrows(UserRevertedException.class, () -> score.invoke(owner2, "migrate_peer_cids", (Object) new String[]{"CID_0"}));
+
+        // The listed contents are indexed and charged on their peers once, the unknown ones are skipped
+        score.invoke(owner1, "migrate_peer_cids", (Object) new String[]{"CID_0", "CID_X"});
+        score.invoke(owner1, "migrate_peer_cids", (Object) new String[]{"CID_0"});
+        assertEquals(1, ((Map<String, Object>) score.call("get_node_pins", "NODE_0", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+        assertEquals(BigInteger.valueOf(100), ((Map<String, Object>) score.call("get_node_usage", "NODE_0")).get("used"));
+
+        // Then reallocate finds them
+        score.invoke(owner1, "remove_node", "NODE_0");
+        score.invoke(owner2, "reallocate", "NODE_0", BigInteger.TEN);
+        assertArrayEquals(new String[]{"NODE_1"}, (String[]) ((Map<String, Object>) score.call("check_allocations", "CID_0")).get("user_allocations"));
+        assertEquals(BigInteger.valueOf(100), ((Map<String, Object>) score.call("get_node_usage", "NODE_1")).get("used"));
+    }
+
+    private static String signBatch(DidKeyHolder signer, Payload.Builder payload) throws AlgorithmException {
+        return new Jwt.Builder(signer.getKid()).payload(payload.build()).build().sign(signer);
+    }
+
     private BigInteger getTimeStamp(int hour) {
         BigInteger timestampMicros = BigInteger.valueOf(sm.getBlock().getTimestamp());
 
@@ -0,0 +1,99 @@
+package com.iconloop.score.bfs;
+
+import com.iconloop.score.test.TestBase;
+import org.junit.jupiter.api.Test;
+import score.ByteArrayObjectWriter;
+import score.Context;
+import score.ObjectReader;
+
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class CidInfoCodecTest extends TestBase {
+    private static final String CODEC = "RLPn";
+    private static final String[] ALLOCATIONS = new String[]{
+            "12D3KooWQYhTNQdmr3ArTeUHRYzFg94BKyTkoWBDWez9kSCVe2Xo",
+            "12D3KooWRBy97UB99e3J6hiPesre1MZeuNQvfan4gBziswrRJsNK",
+            "12D3KooWCKWTb3Kfn2MM4MBbSfjcmtYBvvTmwh7Q9sJRiS7cuRP9",
+            "12D3KooWSnesxkpLKtmhCaw6HKY3afzMqgGc2NHjvB9ivGdQbNHT",
+            "12D3KooWHVGpRADbBSTFnAKqXeWSQfT6THaZWEgn7wxWAZbjo1JV"
+    };
+
+    private static CidInfo newCidInfo() {
+        return new CidInfo.Builder()
+                .cid("zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA")
+                .size(BigInteger.valueOf(100))
+                .replicationMin(BigInteger.valueOf(3))
+                .replicationMax(BigInteger.valueOf(5))
+                .userAllocations(ALLOCATIONS)
+                .shardSize(BigInteger.valueOf(12345))
+                .refCnt(2)
+                .build();
+    }
+
+    private static byte[] encode(CidInfo cidInfo) {
+        ByteArrayObjectWriter w = Context.newByteArrayObjectWriter(CODEC);
+        CidInfo.writeObject(w, cidInfo);
+        return w.toByteArray();
+    }
+
+    // The layout used before the allocations were written as a list
+    private static byte[] encodeLegacy(CidInfo c) {
+        ByteArrayObjectWriter w = Context.newByteArrayObjectWriter(CODEC);
+        w.writeListOfNullable(
+                c.getCid(),
+                c.getSize(),
+                c.getReplication_min(),
+                c.getReplication_max(),
+                Helper.StringListToJsonString(c.getUser_allocations()),
+                c.getShard_size(),
+                c.getRefCnt()
+        );
+        return w.toByteArray();
+    }
+
+    private static CidInfo decode(byte[] bytes) {
+        ObjectReader r = Context.newByteArrayObjectReader(CODEC, bytes);
+        return CidInfo.readObject(r);
+    }
+
+    private static void assertCidInfoEquals(CidInfo expected, CidInfo actual) {
+        assertEquals(expected.getCid(), actual.getCid());
+        assertEquals(expected.getSize(), actual.getSize());
+        assertEquals(expected.getReplication_min(), actual.getReplication_min());
+        assertEquals(expected.getReplication_max(), actual.getReplication_max());
+        assertArrayEquals(expected.getUser_allocations(), actual.getUser_allocations());
+        assertEquals(expected.getShard_size(), actual.getShard_size());
+        assertEquals(expected.getRefCnt(), actual.getRefCnt());
+    }
+
+    @Test
+    void codecTest() {
+        CidInfo cidInfo = newCidInfo();
+        assertCidInfoEquals(cidInfo, decode(encode(cidInfo)));
+
+        // A legacy record is read as is, and written back in the list layout
+        CidInfo legacy = decode(encodeLegacy(cidInfo));
+        assertCidInfoEquals(cidInfo, legacy);
+        assertCidInfoEquals(cidInfo, decode(encode(legacy)));
+
+        // No allocations
+        CidInfo empty = new CidInfo.Builder()
+                .cid("cid").size(BigInteger.ONE).replicationMin(BigInteger.ONE).replicationMax(BigInteger.ONE)
+                .userAllocations(new String[0]).build();
+        assertEquals(0, decode(encode(empty)).getUser_allocations().length);
+
+        // Interned allocations are kept as handles, and the peer IDs are left to the contract to resolve
+        int[] handles = new int[]{1, 7, 300, 70000, 5};
+        CidInfo interned = new CidInfo.Builder()
+                .cid("cid").size(BigInteger.ONE).replicationMin(BigInteger.ONE).replicationMax(BigInteger.ONE)
+                .allocationHandles(handles).refCnt(1).build();
+        CidInfo decoded = decode(encode(interned));
+        assertArrayEquals(handles, decoded.getAllocationHandles());
+        assertNull(decoded.getUser_allocations());
+        assertEquals(Integer.valueOf(1), decoded.getRefCnt());
+    }
+}
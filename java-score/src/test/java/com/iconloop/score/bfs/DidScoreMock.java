@@ -5,16 +5,31 @@ import score.Context;
 import score.DictDB;
 import score.annotation.External;
 
+import java.math.BigInteger;
+
 public class DidScoreMock {
     private final BranchDB<String, DictDB<String, byte[]>> publicKeys = Context.newBranchDB("publicKeys", byte[].class);
+    // Number of getPublicKey calls, which is what the public key cache of the contract saves.
+    private int publicKeyQueries;
 
     @External
     public void register(String did, String kid, byte[] pubkey) {
         publicKeys.at(did).set(kid, pubkey);
     }
 
+    @External
+    public void revoke(String did, String kid) {
+        publicKeys.at(did).set(kid, null);
+    }
+
     @External(readonly=true)
     public byte[] getPublicKey(String did, String kid) {
+        publicKeyQueries++;
         return publicKeys.at(did).get(kid);
     }
+
+    @External(readonly=true)
+    public BigInteger getPublicKeyQueries() {
+        return BigInteger.valueOf(publicKeyQueries);
+    }
 }
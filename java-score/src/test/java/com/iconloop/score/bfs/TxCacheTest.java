@@ -0,0 +1,238 @@
+package com.iconloop.score.bfs;
+
+import com.iconloop.score.test.Account;
+import com.iconloop.score.test.Score;
+import com.iconloop.score.test.ServiceManager;
+import com.iconloop.score.test.TestBase;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.MethodOrderer;
+import org.junit.jupiter.api.Order;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.TestMethodOrder;
+import score.Address;
+import score.UserRevertedException;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@TestMethodOrder(MethodOrderer.OrderAnnotation.class)
+public class TxCacheTest extends TestBase {
+    private static final ServiceManager sm = getServiceManager();
+    private static final Account owner1 = sm.createAccount();
+    private static final Account owner2 = sm.createAccount();
+    private static Score bfsContentsScore;
+
+    // Keeps the caches created by each call, to count the records and index entries read from storage, and counts the
+    // reads of the settings.
+    public static class ReadCountingBfsContents extends BfsContents {
+        static final List<TxCache> caches = new ArrayList<>();
+        static int settingsReads = 0;
+
+        public ReadCountingBfsContents(Address did_score) {
+            super(did_score);
+        }
+
+        @Override
+        protected TxCache newTxCache() {
+            TxCache cache = super.newTxCache();
+            caches.add(cache);
+            return cache;
+        }
+
+        @Override
+        protected AllocationSettings readAllocationSettings() {
+            settingsReads++;
+            return super.readAllocationSettings();
+        }
+    }
+
+    @BeforeAll
+    static void beforeAll() throws Exception {
+        Score didScore = sm.deploy(owner1, DidScoreMock.class);
+        bfsContentsScore = sm.deploy(owner1, ReadCountingBfsContents.class, didScore.getAddress());
+    }
+
+    private static int invokeAndCountReads(Account from, String method, Object... params) {
+        ReadCountingBfsContents.caches.clear();
+        ReadCountingBfsContents.settingsReads = 0;
+        bfsContentsScore.invoke(from, method, params);
+        return countReads();
+    }
+
+    private static int callAndCountReads(String method, Object... params) {
+        ReadCountingBfsContents.caches.clear();
+        bfsContentsScore.call(method, params);
+        return countReads();
+    }
+
+    private static int countReads() {
+        assertEquals(1, ReadCountingBfsContents.caches.size());
+        return ReadCountingBfsContents.caches.get(0).getReads();
+    }
+
+    private BigInteger getTimeStamp(int hour) {
+        return BigInteger.valueOf(sm.getBlock().getTimestamp())
+                .add(BigInteger.valueOf(hour * 3600L * 1_000_000L));
+    }
+
+    @Test
+    @Order(1)
+    void nodeReadsTest() {
+        // The node, its index in the peer list, the counters of the list and the handle of the peer
+        assertEquals(8, invokeAndCountReads(owner1, "add_node", "NODE_0", "http://node0", null, null, null, null));
+        assertEquals(8, invokeAndCountReads(owner1, "add_node", "NODE_1", "http://node1", null, null, null, null));
+        assertEquals(8, invokeAndCountReads(owner1, "add_node", "NODE_2", "http://node2", null, null, null, null));
+        // The node is checked and then loaded for the owner check, from one read
+        assertEquals(8, invokeAndCountReads(owner1, "update_node", "NODE_2", "http://node2-1", null, null, null, null));
+        assertEquals(8, invokeAndCountReads(owner1, "remove_node", "NODE_2"));
+    }
+
+    @Test
+    @Order(2)
+    void pinReadsTest() {
+        BigInteger expireAt = getTimeStamp(1);
+        // The pin and the CID, each read once for the existence check and the update, the usage of the owner,
+        // its quota, the total usage, the number of CIDs and the stored bytes, then the peer picked from the list
+        // with the cursors, its handle, usage and digest, and the entries of the pin and expiry indexes
+        assertEquals(23, invokeAndCountReads(owner1, "pin", "CID_0", BigInteger.valueOf(100), expireAt, null, null, null, null));
+        // The pin, the CID and the peer ID of its allocation
+        assertEquals(3, callAndCountReads("get_pin", owner1.getAddress().toString(), "CID_0"));
+
+        // The group, and the window it is indexed under for collect_expired
+        assertEquals(5, invokeAndCountReads(owner1, "update_group", "GROUP_0", getTimeStamp(2), null));
+        // Along with the set of pins of the group, the group and its window
+        assertEquals(27, invokeAndCountReads(owner1, "pin", "CID_1", BigInteger.valueOf(100), expireAt, "GROUP_0", null, null, null));
+        assertEquals(4, callAndCountReads("get_pin", owner1.getAddress().toString(), "CID_1"));
+
+        // The pin, and the entries of the expiry index it moves between
+        assertEquals(7, invokeAndCountReads(owner1, "update_pin", "CID_0", getTimeStamp(3), null));
+        // The quota is only checked when pinning, and the unpinned pin is queued for the purge
+        assertEquals(22, invokeAndCountReads(owner1, "unpin", "CID_0", null));
+        // Only a new CID reads the allocation settings
+        assertEquals(0, ReadCountingBfsContents.settingsReads);
+    }
+
+    @Test
+    @Order(3)
+    void batchReadsTest() {
+        String[] cids = new String[]{"CID_0", "CID_2", "CID_3"};
+        BigInteger[] sizes = new BigInteger[]{BigInteger.ONE, BigInteger.ONE, BigInteger.ONE};
+        BigInteger expireAt = getTimeStamp(1);
+        BigInteger[] expireAts = new BigInteger[]{expireAt, expireAt, expireAt};
+        // The usage counters and the allocation settings are read once for the whole batch, the peers and the
+        // indexes for each pin
+        assertEquals(63, invokeAndCountReads(owner2, "pin_batch", cids, sizes, expireAts, null, "GROUP_1", null));
+        assertEquals(1, ReadCountingBfsContents.settingsReads);
+
+        // The group shared by the pins of a page is read once, like the peers of their allocations
+        assertEquals(13, callAndCountReads("get_pins_by_owner", owner2.getAddress().toString(), BigInteger.ZERO, BigInteger.TEN));
+
+        assertEquals(21, invokeAndCountReads(owner2, "update_pin_batch", cids, getTimeStamp(2), null));
+        // A cid given twice reverts as a duplicate, before any pin is released
+        String[] duplicated = new String[]{"CID_2", "CID_2"};
+        var error = assertThrows(UserRevertedException.class, () -> bfsContentsScore.invoke(owner2, "unpin_batch", duplicated, null));
+        assertTrue(error.getMessage().contains("duplicate cid"));
+        assertNotNull(bfsContentsScore.call("get_pin", owner2.getAddress().toString(), "CID_2"));
+        assertEquals(62, invokeAndCountReads(owner2, "unpin_batch", cids, null));
+    }
+
+    @Test
+    @Order(4)
+    void multiGetReadsTest() {
+        String owner = owner1.getAddress().toString();
+        String[] cids = new String[]{"CID_4", "CID_5", "CID_6"};
+        BigInteger[] sizes = new BigInteger[]{BigInteger.ONE, BigInteger.ONE, BigInteger.ONE};
+        BigInteger expireAt = getTimeStamp(1);
+        BigInteger[] expireAts = new BigInteger[]{expireAt, expireAt, expireAt};
+        bfsContentsScore.invoke(owner1, "pin_batch", cids, sizes, expireAts, null, "GROUP_2", null);
+
+        // The pins and CIDs, and the group and the peers they share once
+        assertEquals(9, callAndCountReads("get_pins", owner, cids));
+        // A repeated CID is read once, and a missing pin costs its lookups only
+        String[] mixed = new String[]{"CID_4", "CID_X", "CID_4"};
+        assertEquals(6, callAndCountReads("get_pins", owner, mixed));
+        var pins = (List<Object>) bfsContentsScore.call("get_pins", owner, mixed);
+        assertEquals(3, pins.size());
+        assertEquals("CID_4", ((Map<String, Object>) pins.get(0)).get("cid"));
+        assertNull(pins.get(1));
+        assertEquals("CID_4", ((Map<String, Object>) pins.get(2)).get("cid"));
+
+        assertEquals(3, callAndCountReads("check_allocations_batch", (Object) mixed));
+        var allocations = (List<Object>) bfsContentsScore.call("check_allocations_batch", (Object) mixed);
+        assertEquals("CID_4", ((Map<String, Object>) allocations.get(0)).get("cid"));
+        assertNull(allocations.get(1));
+    }
+
+    @Test
+    @Order(5)
+    void unpinGroupReadsTest() {
+        // The set of the group is read once, then an entry per pin, which is released like in a batch
+        assertEquals(66, invokeAndCountReads(owner1, "unpin_group", "GROUP_2", BigInteger.TEN, null));
+        assertEquals(0, ((Map<String, Object>) bfsContentsScore.call("get_group_pins",
+                owner1.getAddress().toString(), "GROUP_2", BigInteger.ZERO, BigInteger.TEN)).get("total"));
+    }
+
+    @Test
+    @Order(6)
+    void reallocateReadsTest() {
+        bfsContentsScore.invoke(owner1, "add_node", "NODE_3", "http://node3", null, null, null, null);
+        bfsContentsScore.invoke(owner1, "pin", "CID_7", BigInteger.ONE, getTimeStamp(1), null, null, null, new String[]{"NODE_3"});
+        bfsContentsScore.invoke(owner1, "remove_node", "NODE_3");
+
+        // The handle and the CIDs of the removed peer, and the replacement picked from the list for each CID
+        assertEquals(24, invokeAndCountReads(owner2, "reallocate", "NODE_3", BigInteger.TEN));
+        assertEquals(0, ((Map<String, Object>) bfsContentsScore.call("get_node_digest", "NODE_3")).get("count"));
+    }
+
+    @Test
+    @Order(7)
+    void livenessReadsTest() {
+        bfsContentsScore.invoke(owner1, "set_liveness_window", BigInteger.ONE);
+        // The node, and the set of stale nodes it is not in
+        assertEquals(2, invokeAndCountReads(owner1, "heartbeat", "NODE_0"));
+
+        // The settings of the window, the cursor and the list, then the last heartbeat of each peer, and the
+        // indexes the stale peer is moved between
+        assertEquals(16, invokeAndCountReads(owner2, "sweep_stale_nodes", BigInteger.TEN));
+        assertEquals(1, ((Map<String, Object>) bfsContentsScore.call("get_info")).get("NumOfStalePeers"));
+        // Back from the stale nodes, the peer is added to the list again
+        assertEquals(6, invokeAndCountReads(owner1, "heartbeat", "NODE_1"));
+        assertEquals(0, ((Map<String, Object>) bfsContentsScore.call("get_info")).get("NumOfStalePeers"));
+        bfsContentsScore.invoke(owner1, "set_liveness_window", BigInteger.ZERO);
+    }
+
+    @Test
+    @Order(8)
+    void collectExpiredReadsTest() {
+        String owner = owner1.getAddress().toString();
+        // Past the buckets of the pins and of their groups
+        sm.getBlock().increase(4 * 1800);
+        // The cursor, then the pins and groups of each bucket passed, and an entry per pin, which is deleted like in
+        // an unpin
+        assertEquals(59, invokeAndCountReads(owner2, "collect_expired", BigInteger.TEN));
+        assertNull(bfsContentsScore.call("get_pin", owner, "CID_1"));
+        assertNull(bfsContentsScore.call("get_pin", owner, "CID_7"));
+    }
+
+    @Test
+    @Order(9)
+    void purgeReadsTest() {
+        String owner = owner2.getAddress().toString();
+        // Within the grace window, the grace, the pin and the CID are only read
+        assertEquals(3, invokeAndCountReads(owner2, "purge_pins", owner, new String[]{"CID_0"}));
+        assertNotNull(bfsContentsScore.call("get_pin", owner, "CID_0"));
+
+        // The queue, then each tombstone and its pin
+        sm.getBlock().increase(43200);
+        assertEquals(17, invokeAndCountReads(owner2, "purge_tombstones", BigInteger.TEN));
+        assertNull(bfsContentsScore.call("get_pin", owner, "CID_0"));
+    }
+}
@@ -0,0 +1,74 @@
+package com.parametacorp.jwt;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the parsing of a did_sign token by {@link Jwt} and by {@link LegacyJwt}: the split, the header,
+ * the payload, the signature and the hash of the signing input, which is all a signature check needs
+ * apart from the verification itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JwtBenchmark {
+    private static final String KID = "did:icon:03:2b9ce86ed7ff1cc6b7eb8e2ba0e8c1a4f0ffa44b8e6d4a57#key1";
+
+    /** Number of CIDs in the payload: 1 for pin, more for pin_batch. */
+    @Param({"1", "20"})
+    public int cids;
+
+    private String token;
+
+    @Setup
+    public void setup() {
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < cids; i++) {
+            params.append((i == 0) ? "" : ",").append("\"zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93b").append(i).append('"');
+        }
+        String header = "{\"alg\":\"ES256K\",\"kid\":\"" + KID + "\"}";
+        String payload = "{\"method\":\"pin_batch\",\"param\":{\"cids\":[" + params + "],\"base_height\":1234567}}";
+        byte[] sig = new byte[65];
+        for (int i = 0; i < sig.length; i++) {
+            sig[i] = (byte) i;
+        }
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        token = encoder.encodeToString(header.getBytes()) + "."
+                + encoder.encodeToString(payload.getBytes()) + "."
+                + encoder.encodeToString(sig);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+        LegacyJwt jwt = new LegacyJwt(token);
+        bh.consume(jwt.parseHeader());
+        bh.consume(jwt.getPayload());
+        bh.consume(jwt.getSig());
+        bh.consume(jwt.getHash());
+    }
+
+    @Benchmark
+    public void singlePass(Blackhole bh) {
+        Jwt jwt = new Jwt(token);
+        bh.consume(jwt.parseHeader());
+        bh.consume(jwt.getPayload());
+        bh.consume(jwt.getSig());
+        bh.consume(jwt.getHash());
+    }
+}
@@ -0,0 +1,198 @@
+package com.parametacorp.jwt;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
+import com.eclipsesource.json.JsonObject;
+import com.eclipsesource.json.JsonValue;
+
+import java.math.BigInteger;
+
+/**
+ * The payload as it was before the fixed-field matcher, kept as the baseline of {@link PayloadBenchmark}.
+ */
+class LegacyPayload {
+    private static final String KEY_METHOD = "method";
+    private static final String KEY_PARAM = "param";
+
+    private final JsonObject payload;
+
+    LegacyPayload(JsonObject payload) {
+        this.payload = payload;
+    }
+
+    public boolean validate(JsonObject actual, long currentHeight) {
+        if (actual == null) {
+            return false;
+        }
+        if (actual.get(KEY_METHOD).asString().equals(payload.get(KEY_METHOD).asString())) {
+            JsonObject expectedParams = payload.get(KEY_PARAM).asObject();
+            JsonObject actualParams = actual.get(KEY_PARAM).asObject();
+            if (expectedParams.size() != actualParams.size()) {
+                return false;
+            }
+            for (String key : expectedParams.names()) {
+                if (!actualParams.contains(key)) {
+                    return false;
+                }
+                JsonValue expected = expectedParams.get(key);
+                JsonValue actualValue = actualParams.get(key);
+                if (expected.isString()) {
+                    if (!actualValue.isString() || !expected.asString().equals(actualValue.asString())) {
+                        return false;
+                    }
+                } else if (expected.isNumber()) {
+                    if (!actualValue.isNumber()) {
+                        return false;
+                    }
+                    if (key.equals("base_height")) {
+                        if (actualValue.asLong() < expected.asLong() || currentHeight <= actualValue.asLong()) {
+                            return false;
+                        }
+                    } else if (actualValue.asLong() !=  expected.asLong()) {
+                        return false;
+                    }
+                } else if (expected.isArray()) {
+                    if (!actualValue.isArray() || !equalStringArrays(expected.asArray(), actualValue.asArray())) {
+                        return false;
+                    }
+                } else {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean equalStringArrays(JsonArray expected, JsonArray actual) {
+        if (expected.size() != actual.size()) {
+            return false;
+        }
+        for (int i = 0; i < expected.size(); i++) {
+            JsonValue actualValue = actual.get(i);
+            if (!actualValue.isString() || !expected.get(i).asString().equals(actualValue.asString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return payload.toString();
+    }
+
+    public static class Builder {
+        private final String method;
+        private String cid;
+        private String group;
+        private BigInteger size;
+        private BigInteger expire_at;
+        private long baseHeight;
+        private String[] cids;
+        private BigInteger[] sizes;
+        private BigInteger[] expire_ats;
+
+        public Builder(String method) {
+            this.method = method;
+        }
+
+        public Builder cid(String cid) {
+            this.cid = cid;
+            return this;
+        }
+
+        public Builder group(String group) {
+            this.group = group;
+            return this;
+        }
+
+        public Builder size(BigInteger size) {
+            this.size = size;
+            return this;
+        }
+
+        public Builder expire_at(BigInteger expire_at) {
+            this.expire_at = expire_at;
+            return this;
+        }
+
+        public Builder cids(String[] cids) {
+            this.cids = cids;
+            return this;
+        }
+
+        public Builder sizes(BigInteger[] sizes) {
+            this.sizes = sizes;
+            return this;
+        }
+
+        public Builder expire_ats(BigInteger[] expire_ats) {
+            this.expire_ats = expire_ats;
+            return this;
+        }
+
+        public Builder baseHeight(long height) {
+            this.baseHeight = height;
+            return this;
+        }
+
+        public LegacyPayload build() {
+            JsonObject params = Json.object();
+            if (cid != null) {
+                params.add("cid", Json.value(cid));
+            }
+
+            if (method.equals("update_group") && group != null){
+                params.add("group", Json.value(group));
+            }
+
+            if (size != null) {
+                params.add("size", Json.value(size.toString(16)));
+            }
+
+            if (expire_at != null) {
+                params.add("expire_at", Json.value(expire_at.toString(16)));
+            }
+
+            if (cids != null) {
+                JsonArray values = Json.array();
+                for (String value : cids) {
+                    values.add(value);
+                }
+                params.add("cids", values);
+            }
+
+            if (sizes != null) {
+                params.add("sizes", toHexArray(sizes));
+            }
+
+            if (expire_ats != null) {
+                params.add("expire_ats", toHexArray(expire_ats));
+            }
+
+            if (baseHeight > 0) {
+                params.add("base_height", Json.value(baseHeight));
+            }
+
+            JsonObject payload = Json.object()
+                    .add(KEY_METHOD, method)
+                    .add(KEY_PARAM, params);
+            return new LegacyPayload(payload);
+        }
+
+        private JsonArray toHexArray(BigInteger[] values) {
+            JsonArray array = Json.array();
+            for (BigInteger value : values) {
+                array.add(value.toString(16));
+            }
+            return array;
+        }
+
+        private void addIfNotNull(JsonObject params, String name, JsonValue value) {
+            if (value != Json.NULL) {
+                params.add(name, value);
+            }
+        }
+    }
+}
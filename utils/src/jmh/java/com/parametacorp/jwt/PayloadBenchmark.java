@@ -0,0 +1,69 @@
+package com.parametacorp.jwt;
+
+import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares building the expected payload of a signed call and validating the decoded one
+ * by {@link Payload} and by {@link LegacyPayload}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+    private static final String CID = "zb2rhe5P4gXftAwvA4eXQ5HJwsER2owDyS9sKaQRRVQPn93bA";
+    private static final BigInteger SIZE = BigInteger.valueOf(1024);
+    private static final BigInteger EXPIRE_AT = BigInteger.valueOf(1_735_689_600_000_000L);
+    private static final long BASE_HEIGHT = 1_234_567;
+    private static final long CURRENT_HEIGHT = BASE_HEIGHT + 10;
+
+    private JsonObject signedPin;
+    private JsonObject signedUpdatePin;
+
+    @Setup
+    public void setup() {
+        signedPin = Json.parse(new Payload.Builder("pin").cid(CID).size(SIZE).expire_at(EXPIRE_AT).build().toString()).asObject();
+        signedUpdatePin = Json.parse(new Payload.Builder("update_pin").cid(CID).expire_at(EXPIRE_AT)
+                .baseHeight(BASE_HEIGHT).build().toString()).asObject();
+    }
+
+    @Benchmark
+    public boolean legacyPin() {
+        return new LegacyPayload.Builder("pin").cid(CID).size(SIZE).expire_at(EXPIRE_AT).build()
+                .validate(signedPin, CURRENT_HEIGHT);
+    }
+
+    @Benchmark
+    public boolean pin() {
+        return new Payload.Builder("pin").cid(CID).size(SIZE).expire_at(EXPIRE_AT).build()
+                .validate(signedPin, CURRENT_HEIGHT);
+    }
+
+    @Benchmark
+    public boolean legacyUpdatePin() {
+        return new LegacyPayload.Builder("update_pin").cid(CID).expire_at(EXPIRE_AT).baseHeight(BASE_HEIGHT).build()
+                .validate(signedUpdatePin, CURRENT_HEIGHT);
+    }
+
+    @Benchmark
+    public boolean updatePin() {
+        return new Payload.Builder("update_pin").cid(CID).expire_at(EXPIRE_AT).baseHeight(BASE_HEIGHT).build()
+                .validate(signedUpdatePin, CURRENT_HEIGHT);
+    }
+}
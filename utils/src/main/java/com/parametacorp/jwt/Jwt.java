@@ -21,48 +21,54 @@ import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 import score.Context;
 import scorex.util.Base64;
-import scorex.util.StringTokenizer;
 
 public class Jwt {
     static final String ALGORITHM_ES256K = "ES256K";
 
-    private final String header;
-    private final String payload;
-    private final String sig;
+    // The token as is; the header, payload and signature are the ranges between the dots.
+    private final byte[] token;
+    private final int headerEnd;
+    private final int payloadEnd;
+    // Each part is decoded at most once, on demand.
+    private JsonObject header;
+    private JsonObject payload;
+    private byte[] sig;
     private byte[] msgHash;
 
     public Jwt(String jwt) {
-        String[] tokens = new String[3];
-        StringTokenizer tokenizer = new StringTokenizer(jwt, ".");
-        for (int i = 0; i < tokens.length; i++) {
-            Context.require(tokenizer.hasMoreTokens(), "need more tokens");
-            tokens[i] = tokenizer.nextToken();
-        }
-        Context.require(!tokenizer.hasMoreTokens(), "should be no more tokens");
-
-        // just hold each part as is so that it can be used for verifying later
-        // it will be decoded on demand
-        this.header = tokens[0];
-        this.payload = tokens[1];
-        this.sig = tokens[2];
+        this.token = jwt.getBytes();
+        this.headerEnd = indexOf(token, (byte) '.', 0);
+        this.payloadEnd = (headerEnd < 0) ? -1 : indexOf(token, (byte) '.', headerEnd + 1);
+        Context.require(headerEnd > 0 && payloadEnd > headerEnd + 1 && payloadEnd < token.length - 1,
+                "need more tokens");
+        Context.require(indexOf(token, (byte) '.', payloadEnd + 1) < 0, "should be no more tokens");
     }
 
     public JsonObject getHeader() {
-        return Json.parse(new String(Base64.getUrlDecoder().decode(header.getBytes()))).asObject();
+        if (header == null) {
+            header = parseObject(0, headerEnd);
+        }
+        return header;
     }
 
     public JsonObject getPayload() {
-        return Json.parse(new String(Base64.getUrlDecoder().decode(payload.getBytes()))).asObject();
+        if (payload == null) {
+            payload = parseObject(headerEnd + 1, payloadEnd);
+        }
+        return payload;
     }
 
     public byte[] getSig() {
-        return Base64.getUrlDecoder().decode(sig.getBytes());
+        if (sig == null) {
+            sig = decode(payloadEnd + 1, token.length);
+        }
+        return sig;
     }
 
     public byte[] getHash() {
         if (msgHash == null) {
-            String content = header + "." + payload;
-            msgHash = Context.hash("sha-256", content.getBytes());
+            // The signing input is the token up to the second dot.
+            msgHash = Context.hash("sha-256", copyOfRange(token, 0, payloadEnd));
         }
         return msgHash;
     }
@@ -75,17 +81,38 @@ public class Jwt {
         JsonValue kid = obj.get("kid");
         Context.require(kid != null, "kid not found");
 
-        String[] tokens = new String[2];
-        StringTokenizer tokenizer = new StringTokenizer(kid.asString(), "#");
-        for (int i = 0; i < tokens.length; i++) {
-            Context.require(tokenizer.hasMoreTokens(), "need more tokens");
-            tokens[i] = tokenizer.nextToken();
-        }
-        Context.require(!tokenizer.hasMoreTokens(), "should be no more tokens");
-        return tokens;
+        // did#kid
+        String value = kid.asString();
+        int sep = value.indexOf('#');
+        Context.require(sep > 0 && sep < value.length() - 1, "need more tokens");
+        Context.require(value.indexOf('#', sep + 1) < 0, "should be no more tokens");
+        return new String[]{value.substring(0, sep), value.substring(sep + 1)};
     }
 
     public boolean verify(byte[] pubKey) {
         return Context.verifySignature("ecdsa-secp256k1", getHash(), getSig(), pubKey);
     }
+
+    private JsonObject parseObject(int from, int to) {
+        return Json.parse(new String(decode(from, to))).asObject();
+    }
+
+    private byte[] decode(int from, int to) {
+        return Base64.getUrlDecoder().decode(copyOfRange(token, from, to));
+    }
+
+    private static int indexOf(byte[] bytes, byte b, int from) {
+        for (int i = from; i < bytes.length; i++) {
+            if (bytes[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] copyOfRange(byte[] bytes, int from, int to) {
+        byte[] range = new byte[to - from];
+        System.arraycopy(bytes, from, range, 0, range.length);
+        return range;
+    }
 }
@@ -1,6 +1,7 @@
 package com.parametacorp.jwt;
 
 import com.eclipsesource.json.Json;
+import com.eclipsesource.json.JsonArray;
 import com.eclipsesource.json.JsonObject;
 import com.eclipsesource.json.JsonValue;
 
@@ -10,55 +11,167 @@ public class Payload {
     static final String KEY_METHOD = "method";
     static final String KEY_PARAM = "param";
 
-    private final JsonObject payload;
-
-    public Payload(JsonObject payload) {
-        this.payload = payload;
+    // The expected params, null (or 0 for baseHeight) when absent. Numbers are held as the hex strings signed.
+    private final String method;
+    private final String cid;
+    private final String group;
+    private final String size;
+    private final String expireAt;
+    private final String[] cids;
+    private final String[] sizes;
+    private final String[] expireAts;
+    private final String[] names;
+    private final long baseHeight;
+    private final int paramCount;
+
+    private Payload(Builder builder) {
+        this.method = builder.method;
+        this.cid = builder.cid;
+        this.group = (builder.method.equals("update_group") || builder.method.equals("unpin_group")
+                || builder.method.equals("pin_batch")) ? builder.group : null;
+        this.size = toHex(builder.size);
+        this.expireAt = toHex(builder.expire_at);
+        this.cids = builder.cids;
+        this.sizes = toHexArray(builder.sizes);
+        this.expireAts = toHexArray(builder.expire_ats);
+        this.names = builder.names;
+        this.baseHeight = builder.baseHeight;
+        this.paramCount = count(cid) + count(group) + count(size) + count(expireAt)
+                + count(cids) + count(sizes) + count(expireAts) + count(names) + (baseHeight > 0 ? 1 : 0);
     }
 
+    /**
+     * Checks the signed payload against the expected params with one lookup per param.
+     * As the number of params must match too, the signed payload has no other param.
+     */
     public boolean validate(JsonObject actual, long currentHeight) {
         if (actual == null) {
             return false;
         }
-        if (actual.get(KEY_METHOD).asString().equals(payload.get(KEY_METHOD).asString())) {
-            JsonObject expectedParams = payload.get(KEY_PARAM).asObject();
-            JsonObject actualParams = actual.get(KEY_PARAM).asObject();
-            if (expectedParams.size() != actualParams.size()) {
+        JsonValue actualMethod = actual.get(KEY_METHOD);
+        if (actualMethod == null || !actualMethod.isString() || !method.equals(actualMethod.asString())) {
+            return false;
+        }
+        JsonValue actualParams = actual.get(KEY_PARAM);
+        if (actualParams == null || !actualParams.isObject()) {
+            return false;
+        }
+        JsonObject params = actualParams.asObject();
+        return params.size() == paramCount
+                && matchString(params, "cid", cid)
+                && matchString(params, "group", group)
+                && matchString(params, "size", size)
+                && matchString(params, "expire_at", expireAt)
+                && matchStrings(params, "cids", cids)
+                && matchStrings(params, "sizes", sizes)
+                && matchStrings(params, "expire_ats", expireAts)
+                && matchStrings(params, "names", names)
+                && matchBaseHeight(params, currentHeight);
+    }
+
+    private static boolean matchString(JsonObject params, String name, String expected) {
+        if (expected == null) {
+            return true;
+        }
+        JsonValue actual = params.get(name);
+        return actual != null && actual.isString() && expected.equals(actual.asString());
+    }
+
+    private static boolean matchStrings(JsonObject params, String name, String[] expected) {
+        if (expected == null) {
+            return true;
+        }
+        JsonValue actual = params.get(name);
+        if (actual == null || !actual.isArray()) {
+            return false;
+        }
+        JsonArray values = actual.asArray();
+        if (values.size() != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            JsonValue value = values.get(i);
+            if (!value.isString() || !expected[i].equals(value.asString())) {
                 return false;
             }
-            for (String key : expectedParams.names()) {
-                if (!actualParams.contains(key)) {
-                    return false;
-                }
-                JsonValue expected = expectedParams.get(key);
-                JsonValue actualValue = actualParams.get(key);
-                if (expected.isString()) {
-                    if (!actualValue.isString() || !expected.asString().equals(actualValue.asString())) {
-                        return false;
-                    }
-                } else if (expected.isNumber()) {
-                    if (!actualValue.isNumber()) {
-                        return false;
-                    }
-                    if (key.equals("base_height")) {
-                        if (actualValue.asLong() < expected.asLong() || currentHeight <= actualValue.asLong()) {
-                            return false;
-                        }
-                    } else if (actualValue.asLong() !=  expected.asLong()) {
-                        return false;
-                    }
-                } else {
-                    return false;
-                }
-            }
+        }
+        return true;
+    }
+
+    // The signed base_height must not be older than the expected one, and must be a past block.
+    private boolean matchBaseHeight(JsonObject params, long currentHeight) {
+        if (baseHeight <= 0) {
             return true;
         }
-        return false;
+        JsonValue actual = params.get("base_height");
+        if (actual == null || !actual.isNumber()) {
+            return false;
+        }
+        long height = actual.asLong();
+        return height >= baseHeight && currentHeight > height;
+    }
+
+    private static int count(Object value) {
+        return (value != null) ? 1 : 0;
+    }
+
+    private static String toHex(BigInteger value) {
+        return (value != null) ? value.toString(16) : null;
+    }
+
+    private static String[] toHexArray(BigInteger[] values) {
+        if (values == null) {
+            return null;
+        }
+        String[] hex = new String[values.length];
+        for (int i = 0; i < values.length; i++) {
+            hex[i] = values[i].toString(16);
+        }
+        return hex;
+    }
+
+    private static JsonArray toJsonArray(String[] values) {
+        JsonArray array = Json.array();
+        for (String value : values) {
+            array.add(value);
+        }
+        return array;
     }
 
     @Override
     public String toString() {
-        return payload.toString();
+        JsonObject params = Json.object();
+        if (cid != null) {
+            params.add("cid", cid);
+        }
+        if (group != null) {
+            params.add("group", group);
+        }
+        if (size != null) {
+            params.add("size", size);
+        }
+        if (expireAt != null) {
+            params.add("expire_at", expireAt);
+        }
+        if (cids != null) {
+            params.add("cids", toJsonArray(cids));
+        }
+        if (sizes != null) {
+            params.add("sizes", toJsonArray(sizes));
+        }
+        if (expireAts != null) {
+            params.add("expire_ats", toJsonArray(expireAts));
+        }
+        if (names != null) {
+            params.add("names", toJsonArray(names));
+        }
+        if (baseHeight > 0) {
+            params.add("base_height", baseHeight);
+        }
+        return Json.object()
+                .add(KEY_METHOD, method)
+                .add(KEY_PARAM, params)
+                .toString();
     }
 
     public static class Builder {
@@ -68,6 +181,10 @@ public class Payload {
         private BigInteger size;
         private BigInteger expire_at;
         private long baseHeight;
+        private String[] cids;
+        private BigInteger[] sizes;
+        private BigInteger[] expire_ats;
+        private String[] names;
 
         public Builder(String method) {
             this.method = method;
@@ -93,43 +210,33 @@ public class Payload {
             return this;
         }
 
-        public Builder baseHeight(long height) {
-            this.baseHeight = height;
+        public Builder cids(String[] cids) {
+            this.cids = cids;
             return this;
         }
 
-        public Payload build() {
-            JsonObject params = Json.object();
-            if (cid != null) {
-                params.add("cid", Json.value(cid));
-            }
-
-            if (method.equals("update_group") && group != null){
-                params.add("group", Json.value(group));
-            }
-
-            if (size != null) {
-                params.add("size", Json.value(size.toString(16)));
-            }
+        public Builder sizes(BigInteger[] sizes) {
+            this.sizes = sizes;
+            return this;
+        }
 
-            if (expire_at != null) {
-                params.add("expire_at", Json.value(expire_at.toString(16)));
-            }
+        public Builder expire_ats(BigInteger[] expire_ats) {
+            this.expire_ats = expire_ats;
+            return this;
+        }
 
-            if (baseHeight > 0) {
-                params.add("base_height", Json.value(baseHeight));
-            }
+        public Builder names(String[] names) {
+            this.names = names;
+            return this;
+        }
 
-            JsonObject payload = Json.object()
-                    .add(KEY_METHOD, method)
-                    .add(KEY_PARAM, params);
-            return new Payload(payload);
+        public Builder baseHeight(long height) {
+            this.baseHeight = height;
+            return this;
         }
 
-        private void addIfNotNull(JsonObject params, String name, JsonValue value) {
-            if (value != Json.NULL) {
-                params.add(name, value);
-            }
+        public Payload build() {
+            return new Payload(this);
         }
     }
 }